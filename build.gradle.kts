@@ -22,6 +22,9 @@ dependencies {
     implementation(libs.qupath.fxtras)
     implementation("commons-io:commons-io:2.15.0")
     implementation("net.imglib2:imglib2-realtransform:4.0.4")
+    // OME-TIFF writer, provided by QuPath at runtime: use the QuPath version of the catalog (set in settings.gradle.kts)
+    val qupathVersion = libs.bundles.qupath.get().first().version
+    compileOnly("io.github.qupath:qupath-extension-bioformats:$qupathVersion")
 }
 
 publishing {
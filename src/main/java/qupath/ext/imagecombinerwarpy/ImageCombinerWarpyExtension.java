@@ -76,6 +76,7 @@ public class ImageCombinerWarpyExtension implements QuPathExtension, GitHubProje
 
             typeAdapterFactory.registerSubtype(RealTransformImageServerBuilder.class, "realtransform");
             typeAdapterFactory.registerSubtype(AffineTransformInterpolationImageServerBuilder.class, "transforminterpolate");
+            typeAdapterFactory.registerSubtype(ChannelViewImageServerBuilder.class, "channelview");
 
             GsonBuilder builder = GsonTools.getDefaultBuilder();
 
@@ -44,13 +44,13 @@ import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.ext.imagecombinerwarpy.gui.InterpolationModes.InterpolationType;
 import qupath.lib.awt.common.AwtTools;
-import qupath.lib.gui.dialogs.Dialogs;
 import qupath.lib.images.servers.AbstractImageServer;
 import qupath.lib.images.servers.ChannelTransformFeatureServer;
 import qupath.lib.images.servers.ImageServer;
@@ -72,7 +72,7 @@ import qupath.lib.regions.RegionRequest;
  * @author Pete Bankhead
  *
  */
-public class AffineTransformInterpolationImageServer extends TransformingImageServer<BufferedImage> {
+public class AffineTransformInterpolationImageServer extends TransformingImageServer<BufferedImage> implements ChannelSelectiveServer {
 	
 	private static Logger logger = LoggerFactory.getLogger(AffineTransformInterpolationImageServer.class);
 	
@@ -88,6 +88,11 @@ public class AffineTransformInterpolationImageServer extends TransformingImageSe
 	
 	private double globalScale = 1.0;	
 	private double[] dsLevels;
+
+	// Tolerance to consider that a transform maps target pixels onto source pixels
+	private static final double COPY_EPS = 1e-6;
+	
+	private final transient TileRequestCoalescer coalescer = new TileRequestCoalescer();
 	
 
 	protected AffineTransformInterpolationImageServer(final ImageServer<BufferedImage> server, AffineTransformInterpolation transforminterpolate) throws NoninvertibleTransformException {
@@ -238,7 +243,7 @@ public class AffineTransformInterpolationImageServer extends TransformingImageSe
 	
 	@Override
 	protected String createID() {
-		return getClass().getName() + ": + " + getWrappedServer().getPath() + " " + GsonTools.getInstance().toJson(transform);
+		return getClass().getName() + ": + " + getWrappedServer().getPath() + " " + GsonTools.getInstance().toJson(transform) + " " + interpolationMode;
 	}
 	
 	/*
@@ -275,6 +280,39 @@ public class AffineTransformInterpolationImageServer extends TransformingImageSe
 	
 	@Override
 	public BufferedImage readRegion(RegionRequest request) throws IOException {
+		return readChannels(request, null);
+	}
+
+	@Override
+	public BufferedImage readChannels(RegionRequest request, int[] channelsRequested) throws IOException {
+		int[] channels = channelsRequested == null || ChannelViewImageServer.isAllChannels(channelsRequested, nChannels()) ? null : channelsRequested;
+		var metrics = WarpMetrics.getInstance();
+		metrics.tileRequested();
+		var cache = WarpedTileCache.getInstance();
+		// Channel subsets are cached separately from the full tiles
+		var key = request.updatePath(channels == null ? getPath() : getPath() + " channels " + Arrays.toString(channels));
+		BufferedImage img = cache.get(key);
+		if (img != null) {
+			metrics.cacheHit();
+			return img;
+		}
+		// Concurrent identical requests share a single computation
+		return coalescer.load(key, () -> {
+			BufferedImage imgWarped = cache.get(key);
+			if (imgWarped == null) {
+				imgWarped = metrics.warp(() -> warpRegion(request, channels));
+				cache.put(key, imgWarped);
+			}
+			return imgWarped;
+		});
+	}
+
+	/**
+	 * Warp a region.
+	 * @param request the region
+	 * @param channels the channels to warp, or null for all the channels
+	 */
+	private BufferedImage warpRegion(RegionRequest request, int[] channels) throws IOException {
 
 		double downsample = request.getDownsample();
 		
@@ -291,7 +329,12 @@ public class AffineTransformInterpolationImageServer extends TransformingImageSe
 		//	padFactor = 4;
 		
 		double scaledDownsample = downsample / globalScale;		
-		double downsampleTR = getBestDownsample(dsLevels, scaledDownsample);
+		double downsampleTR;
+		if (InterpolationModes.isAntiAliased(interpolationMode))
+			// The kernel filters the source: read the nearest level
+			downsampleTR = InterpolationHelper.getNearestDownsample(dsLevels, scaledDownsample);
+		else
+			downsampleTR = getBestDownsample(dsLevels, scaledDownsample);
 		
 		//double maxDownsample = wrappedServer.getDownsampleForResolution(wrappedServer.nResolutions()-1);
 		//double downsampleTR = Math.min(downsample, maxDownsample);
@@ -311,9 +354,12 @@ public class AffineTransformInterpolationImageServer extends TransformingImageSe
 				request.getT()
 				);
 			
-		BufferedImage img = getWrappedServer().readRegion(requestTR);
+		BufferedImage img = wrappedServer.readRegion(requestTR);
 		if (img == null)
 			return img;
+		if (channels != null)
+			// Only the requested channels are resampled
+			img = ChannelViewImageServer.selectChannels(img, channels, getWrappedServer().getPixelType(), getMetadata().getChannels());
 		
 		int w = (int)(request.getWidth() / downsample);
 		int h = (int)(request.getHeight() / downsample);
@@ -328,191 +374,219 @@ public class AffineTransformInterpolationImageServer extends TransformingImageSe
 		} catch (NoninvertibleTransformException e) {
 			throw new IOException(e);
 		}
+		
+		// Source coordinates (in pixels of the source tile) of target pixel (0, 0), and their increments per target column and row
+		double x00 = (transform2.getTranslateX() - requestTR.getX()) / downsampleTR;
+		double y00 = (transform2.getTranslateY() - requestTR.getY()) / downsampleTR;
+		double dxdx = transform2.getScaleX() / downsampleTR;
+		double dxdy = transform2.getShearX() / downsampleTR;
+		double dydx = transform2.getShearY() / downsampleTR;
+		double dydy = transform2.getScaleY() / downsampleTR;
+		
+		// Translations and scalings that map target pixels onto source pixels don't need any interpolation
+		if (dxdy == 0 && dydx == 0 && isCopy(x00, y00, dxdx, dydy))
+			return copyPixels(img, w, h, x00, y00, dxdx, dydy);
 
 		var rasterTransform = img.getRaster();
 		var raster = rasterTransform.createCompatibleWritableRaster(w, h);
 		
 		int nBands = rasterTransform.getNumBands();
 		
-		double[] row = new double[w*2];
-		double[] row2 = new double[w*2];
+		float[] rowX = new float[w];
+		float[] rowY = new float[w];
 		
 		Object elements = null;
 
-		float ka, kb;
-		float p1, p2, p3, p4, pA, pB, pOut;
-		float[][] pixelsFloat = null;
-		int[][] pixelsInt = null;
+		InterpolationSamples samples = null;
+		double[][] rowValues = null;
 		int index;
 		int xx, yy;
 				
-		float cubicA = 1, cubicB = 0;  // InterpolationType.BICUBIC
-		if (interpolationMode != InterpolationType.CATMULLROM) {
-			cubicA = 0.5f; cubicB = 0;
-		}
-		if (interpolationMode != InterpolationType.MITCHELLNETRAVALI) {
-			cubicA = (float) (1/3.0); cubicB = cubicA;
-		}
-		if (interpolationMode != InterpolationType.CUBICBSPLINE) {
-			cubicA = 0; cubicB = 1;
+		// Tabulated kernel weights, computed once per pixel and shared across bands
+		var kernel = InterpolationHelper.getKernelTable(interpolationMode);
+		float[] wx = null, wy = null;
+		if (kernel != null) {
+			wx = new float[kernel.getTaps()];
+			wy = new float[kernel.getTaps()];
 		}
 			
-		boolean useCubicInterpolation = (interpolationMode == InterpolationType.BICUBIC) ||
-										(interpolationMode == InterpolationType.CATMULLROM) ||
-										(interpolationMode == InterpolationType.MITCHELLNETRAVALI) ||
-										(interpolationMode == InterpolationType.CUBICBSPLINE);
+		boolean useKernelInterpolation = kernel != null;
+		boolean useAreaAveraging = interpolationMode == InterpolationType.AREAAVERAGE;
+		
+		// The footprint of a target pixel in the source is the same everywhere for an affine transform
+		float areaSizeX = 0, areaSizeY = 0;
+		int[] rangeX = null, rangeY = null;
+		if (useAreaAveraging) {
+			wx = new float[InterpolationHelper.MAX_AREA_TAPS];
+			wy = new float[InterpolationHelper.MAX_AREA_TAPS];
+			rangeX = new int[2];
+			rangeY = new int[2];
+			areaSizeX = (float) ((Math.abs(transform2.getScaleX()) + Math.abs(transform2.getShearX())) / downsampleTR);
+			areaSizeY = (float) ((Math.abs(transform2.getShearY()) + Math.abs(transform2.getScaleY())) / downsampleTR);
+		}
 										
 		int widthTransform = img.getWidth();
 		int heightTransform = img.getHeight();
 				
-		int type = img.getType();
-		
-		if (interpolationMode != InterpolationType.NEARESTNEIGHBOR && 
-				!(type == BufferedImage.TYPE_USHORT_GRAY || type == BufferedImage.TYPE_BYTE_GRAY ||
-						type == BufferedImage.TYPE_CUSTOM )) {		
-			Dialogs.showErrorNotification("AffineTransformInterpolationImageServer", "Current image type is only supported with NearestNeighbor interpolation!");
-			return null;
-		}
-				
-		boolean isNotFloatType = false;
+		// Samples of the source for interpolation, for any pixel type
+		// Interpolated values are collected per target row and written to the raster once the row is complete
 		if (interpolationMode != InterpolationType.NEARESTNEIGHBOR) {
-			if (type == BufferedImage.TYPE_USHORT_GRAY || type == BufferedImage.TYPE_BYTE_GRAY) {
-				isNotFloatType = true;
-				pixelsInt = new int[nBands][];
-				pixelsFloat = new float[nBands][];
-				for (int b=0; b<nBands; b++) {
-					pixelsInt[b] = (int[])rasterTransform.getSamples(0, 0, widthTransform, heightTransform, b, (int[])null);				
-					pixelsFloat[b] = InterpolationHelper.convertToFloatArray(pixelsInt[b],  (float[])null);
-				}
-			}
-			else {
-				pixelsFloat = new float[nBands][];
-				for (int b=0; b<nBands; b++) {
-					pixelsFloat[b] = (float[])rasterTransform.getSamples(0, 0, widthTransform, heightTransform, b, (float[])null);
-				}
-			}					
+			samples = InterpolationSamples.create(img, getWrappedServer().getPixelType(), interpolationMode);
+			rowValues = new double[nBands][w];
 		}
 	
 		int xB1 = 0, xB2 = 1;
 		int yB1 = 0, yB2 = 1;
 		
-		if ( useCubicInterpolation ) { //interpolationMode == InterpolationType.BICUBIC) {
-			xB1 = 1; xB2 = 2;
-			yB1 = 1; yB2 = 2;
+		if ( useKernelInterpolation ) {
+			xB1 = -kernel.getOffset(); xB2 = kernel.getTaps() + kernel.getOffset() - 1;
+			yB1 = xB1; yB2 = xB2;
 		}
 		
-		/*
-		int[][] samplesInt = null;
-		float[][] samplesFloat = null;
-		
-
-		if ( isNotFloatType )
-			samplesInt = new int[nBands][w*h];
-		else
-			samplesFloat = new float[nBands][w*h];
-		*/
 		for (int y = 0; y < h; y++) {
-			for (int x = 0; x < w; x++) {
-				row[x*2] = x;
-				row[x*2+1] = y;
+			// Source coordinates of the row, in pixels of the source tile
+			// The mapping is affine, so the coordinates are incremented by a constant step per column (DDA-style)
+			// rather than transforming each pixel; without shear the x coordinates are the same for every row
+			double xRow = x00 + y * dxdy;
+			double yRow = y00 + y * dydy;
+			if (y == 0 || dxdy != 0) {
+				for (int x = 0; x < w; x++)
+					rowX[x] = (float) (xRow + x * dxdx);
 			}
+			for (int x = 0; x < w; x++)
+				rowY[x] = (float) (yRow + x * dydx);
 			
-			transform2.transform(row, 0, row2, 0, w);
-			
-			int offset = y * w;
-						
-			for (int x = 0; x < w; x++) {
+			if (interpolationMode == InterpolationType.BILINEAR) {
+				// Batched over the row, band by band
+				samples.bilinearRow(rowX, rowY, 0, w, rowValues);
+			}
+			else {
+				for (int x = 0; x < w; x++) {
 				
-				float dblX = (float) ((row2[x*2]-requestTR.getX())/downsampleTR );
-				float dblY = (float) ((row2[x*2+1]-requestTR.getY())/downsampleTR );							
+					float dblX = rowX[x];
+					float dblY = rowY[x];
 				
-				if (dblX >= xB1 && dblY >= yB1 && dblX < (widthTransform-xB2) && dblY < (heightTransform-yB2)) {
+					if (dblX >= xB1 && dblY >= yB1 && dblX < (widthTransform-xB2) && dblY < (heightTransform-yB2)) {
 					
-					if (interpolationMode == InterpolationType.BILINEAR) {											
-						// Portion from Burger&Burge, Digital Image Processing, 2010
-						xx = (int)Math.floor(dblX);
-						yy = (int)Math.floor(dblY);		
+						if ( useKernelInterpolation ) {
+							// Portion from Burger&Burge, Digital Image Processing, 2010
+							// https://en.wikipedia.org/wiki/Bicubic_interpolation
+							xx = (int)Math.floor(dblX);
+							yy = (int)Math.floor(dblY);		
 						
-						index = yy * widthTransform + xx;
+							kernel.getWeights(dblX - xx, wx);
+							kernel.getWeights(dblY - yy, wy);
+							index = (yy + kernel.getOffset()) * widthTransform + xx + kernel.getOffset();
 						
-						for (int b=0; b<nBands; b++) {
-							p1 = pixelsFloat[b][index];
-							p2 = pixelsFloat[b][index + 1];
-							p3 = pixelsFloat[b][index + widthTransform];
-							p4 = pixelsFloat[b][index + widthTransform + 1];
-							
-							ka = dblX - xx;
-							kb = dblY - yy;
-	
-							pA = p1 + ka*(p2 - p1);
-							pB = p3 + ka*(p4 - p3);
-							pOut = pA + kb*(pB - pA);
-							
-							if ( isNotFloatType ) {
-								raster.setSample(x, y, b, (int)Math.round(pOut));
-								//samplesInt[b][offset+x] = (int)Math.round(pOut);
-							}
-							else {
-								raster.setSample(x, y, b, pOut);
-								//samplesFloat[b][offset+x] = pOut;
-							}
+							for (int b=0; b<nBands; b++)
+								rowValues[b][x] = samples.convolve(b, index, wx, kernel.getTaps(), wy, kernel.getTaps());
 						}
-					}
-					else if ( useCubicInterpolation ) { //interpolationMode == InterpolationType.BICUBIC) { 
-						// Portion from Burger&Burge, Digital Image Processing, 2010
-						// https://en.wikipedia.org/wiki/Bicubic_interpolation
-						xx = (int)Math.floor(dblX);
-						yy = (int)Math.floor(dblY);		
+						else if ( useAreaAveraging ) {
+							InterpolationHelper.getAreaWeights(dblX, areaSizeX, widthTransform, wx, rangeX);
+							InterpolationHelper.getAreaWeights(dblY, areaSizeY, heightTransform, wy, rangeY);
+							index = rangeY[0] * widthTransform + rangeX[0];
 						
-						for (int b=0; b<nBands; b++) {
-							pA = 0;
-							for (int ty=0; ty<=3; ty++) {
-								int v = yy - 1 + ty ; 
-								pB = 0;
-								index = v * widthTransform;
-								for (int tx=0; tx<=3; tx++) {
-									int u = xx - 1 + tx;
-									pB += pixelsFloat[b][index + u] * InterpolationHelper.cubic(dblX - u, cubicA, cubicB);
-								}
-								pA += pB * InterpolationHelper.cubic(dblY - v, cubicA, cubicB);
-							}
-							
-							if ( isNotFloatType ) {
-								raster.setSample(x, y, b, (int)Math.round(pA));
-								//samplesInt[b][offset+x] = (int)Math.round(pA);
-							}
-							else {
-								raster.setSample(x, y, b, pA);
-								//samplesFloat[b][offset+x] = pA;
-							}
+							for (int b=0; b<nBands; b++)
+								rowValues[b][x] = samples.convolve(b, index, wx, rangeX[1], wy, rangeY[1]);
 						}
-					}
-					else {  // Nearest neighbor Interpolation
-						xx = (int)Math.round(dblX);
-						yy = (int)Math.round(dblY);		
+						else {  // Nearest neighbor Interpolation
+							xx = (int)Math.round(dblX);
+							yy = (int)Math.round(dblY);		
 						
-						elements = rasterTransform.getDataElements(xx, yy, elements);
-						raster.setDataElements(x, y, elements);
-					}				
+							elements = rasterTransform.getDataElements(xx, yy, elements);
+							raster.setDataElements(x, y, elements);
+						}				
+					}
 				}
 			}
-		}
-		/*
-		if (interpolationMode == InterpolationType.BILINEAR || useCubicInterpolation) {
-			for (int b=0; b<nBands; b++) {
-				if ( isNotFloatType )
-					raster.setSamples(0, 0, w, h, b, samplesInt[b]);
-				else
-					raster.setSamples(0, 0, w, h, b, samplesFloat[b]);
+			
+			if (samples != null) {
+				samples.writeRow(raster, y, rowValues);
+				for (int b=0; b<nBands; b++)
+					Arrays.fill(rowValues[b], 0);
 			}
 		}
-		*/
 		
 		return new BufferedImage(img.getColorModel(), raster, img.isAlphaPremultiplied(), null);
 	}
 	
 
 	
+	/**
+	 * Check if a transform without rotation or shear can be applied by copying source pixels.
+	 * This is always the case with nearest neighbor interpolation; the other interpolations reproduce
+	 * the source pixels exactly when the target pixels fall on the source pixels (integer translation and scaling),
+	 * except for the smoothing cubic kernels and for area averaging over more than one pixel.
+	 */
+	private boolean isCopy(double x00, double y00, double dxdx, double dydy) {
+		switch (interpolationMode) {
+		case NEARESTNEIGHBOR:
+			return true;
+		case MITCHELLNETRAVALI:
+		case CUBICBSPLINE:
+			return false;
+		case AREAAVERAGE:
+			if (Math.abs(dxdx) > 1 + COPY_EPS || Math.abs(dydy) > 1 + COPY_EPS)
+				return false;
+			// fall through
+		default:
+			return isInteger(x00) && isInteger(y00) && isInteger(dxdx) && isInteger(dydy);
+		}
+	}
+	
+	private static boolean isInteger(double value) {
+		return Math.abs(value - Math.rint(value)) < COPY_EPS;
+	}
+	
+	/**
+	 * Warp an image by copying source pixels, for a transform without rotation or shear.
+	 * Each target pixel takes the nearest source pixel. Pure translations are copied as one contiguous run per row,
+	 * otherwise the source row is read once and its pixels are picked with the (constant) source column of each target column.
+	 */
+	private static BufferedImage copyPixels(BufferedImage img, int w, int h, double x00, double y00, double dxdx, double dydy) {
+		var rasterTransform = img.getRaster();
+		var raster = rasterTransform.createCompatibleWritableRaster(w, h);
+		int widthTransform = img.getWidth();
+		int heightTransform = img.getHeight();
+		
+		// Source column of each target column; the columns inside the source form a single run since the mapping is monotonic
+		int[] cols = new int[w];
+		int xStart = w, xEnd = 0;
+		for (int x = 0; x < w; x++) {
+			cols[x] = (int) Math.round(x00 + x * dxdx);
+			if (cols[x] >= 0 && cols[x] < widthTransform) {
+				xStart = Math.min(xStart, x);
+				xEnd = x + 1;
+			}
+		}
+		
+		if (xStart < xEnd) {
+			int n = xEnd - xStart;
+			int nElements = rasterTransform.getNumDataElements();
+			boolean isTranslation = Math.abs(dxdx - 1) < COPY_EPS;
+			Object sourceRow = null;
+			Object targetRow = null;
+			for (int y = 0; y < h; y++) {
+				int yy = (int) Math.round(y00 + y * dydy);
+				if (yy < 0 || yy >= heightTransform)
+					continue;
+				if (isTranslation) {
+					sourceRow = rasterTransform.getDataElements(cols[xStart], yy, n, 1, sourceRow);
+					raster.setDataElements(xStart, y, n, 1, sourceRow);
+				} else {
+					sourceRow = rasterTransform.getDataElements(0, yy, widthTransform, 1, sourceRow);
+					if (targetRow == null)
+						targetRow = raster.getDataElements(xStart, y, n, 1, null);
+					for (int x = xStart; x < xEnd; x++)
+						System.arraycopy(sourceRow, cols[x] * nElements, targetRow, (x - xStart) * nElements, nElements);
+					raster.setDataElements(xStart, y, n, 1, targetRow);
+				}
+			}
+		}
+		
+		return new BufferedImage(img.getColorModel(), raster, img.isAlphaPremultiplied(), null);
+	}
+	
 	/**
 	 * Get the affine transform for this server.
 	 * @return
@@ -0,0 +1,236 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import qupath.lib.display.DirectServerChannelInfo;
+import qupath.lib.display.ImageDisplay;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Loads a downsampled, single-channel version of a whole image for automatic alignment.
+ * <p>
+ * The image is read tile by tile, each tile being read by the server from the pyramid level closest to the requested
+ * downsample, converted to grayscale and written directly into the output {@link Mat}.
+ * The peak memory is therefore the output buffer (1 to 4 bytes per pixel) plus a single tile,
+ * whatever the size of the image and its number of channels.
+ * <p>
+ * For images with several channels shown as a fluorescence composite, only the channels shown are read, through a
+ * {@link ChannelViewImageServer}: for combined images, or overlays warped by a {@link ChannelSelectiveServer},
+ * the other channels are then neither read nor resampled. The composite is rendered from the display range and
+ * color of each channel, as in the viewer.
+ * <p>
+ * Images with display settings, RGB and 8-bit images are converted to 8-bit; other images are averaged over their
+ * channels, and kept as 16-bit for unsigned 16-bit images or as 32-bit float otherwise, so that float, signed
+ * and 32-bit values are neither rounded nor clamped.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class AlignmentImageLoader {
+
+	// Size of the tiles read from the server, in output pixels
+	static final int TILE_SIZE = 1024;
+
+	/**
+	 * Maximum number of pixels of a loaded image.
+	 */
+	static final long MAX_PIXELS = 1L << 28;
+
+	private AlignmentImageLoader() {
+		// Static methods only
+	}
+
+	/**
+	 * Load a downsampled grayscale image.
+	 * @param server the server to read
+	 * @param downsample the downsample of the output image
+	 * @param display display settings applied to each tile before the grayscale conversion (may be null)
+	 * @return a mat of type {@code CV_8UC1}, {@code CV_16UC1} or {@code CV_32FC1}
+	 * @throws IOException if a tile cannot be read, or if the output image would be larger than {@link #MAX_PIXELS}
+	 */
+	static Mat readGrayscale(ImageServer<BufferedImage> server, double downsample, ImageDisplay display) throws IOException {
+		int width = (int) Math.max(1, Math.round(server.getWidth() / downsample));
+		int height = (int) Math.max(1, Math.round(server.getHeight() / downsample));
+		if ((long) width * height > MAX_PIXELS)
+			throw new IOException(String.format("Alignment image too large (%d x %d pixels) - please use a larger pixel size", width, height));
+
+		int type;
+		if (display != null || server.isRGB() || server.getPixelType() == PixelType.UINT8)
+			type = opencv_core.CV_8UC1;
+		else if (server.getPixelType() == PixelType.UINT16)
+			type = opencv_core.CV_16UC1;
+		else
+			type = opencv_core.CV_32FC1;
+		// Read only the channels shown, if they can be rendered without the other channels
+		List<DirectServerChannelInfo> shownChannels = getShownChannels(server, display);
+		ImageServer<BufferedImage> serverRead = server;
+		if (shownChannels != null)
+			serverRead = ChannelViewImageServer.create(server, shownChannels.stream().mapToInt(DirectServerChannelInfo::getChannel).toArray());
+
+		// Tiles that cannot be read, or that are smaller than expected, leave zeros rather than uninitialized memory
+		Mat mat = Mat.zeros(height, width, type).asMat();
+		ByteBuffer bufByte = type == opencv_core.CV_8UC1 ? mat.createBuffer() : null;
+		ShortBuffer bufShort = type == opencv_core.CV_16UC1 ? mat.createBuffer() : null;
+		FloatBuffer bufFloat = type == opencv_core.CV_32FC1 ? mat.createBuffer() : null;
+		byte[] rowByte = bufByte != null ? new byte[TILE_SIZE] : null;
+		short[] rowShort = bufShort != null ? new short[TILE_SIZE] : null;
+		float[] gray = new float[TILE_SIZE * TILE_SIZE];
+
+		try {
+			for (int ty = 0; ty < height; ty += TILE_SIZE) {
+				int th = Math.min(TILE_SIZE, height - ty);
+				for (int tx = 0; tx < width; tx += TILE_SIZE) {
+					int tw = Math.min(TILE_SIZE, width - tx);
+
+					// Full resolution bounds of the tile, clipped to the image
+					int x = (int) Math.round(tx * downsample);
+					int y = (int) Math.round(ty * downsample);
+					int x2 = (int) Math.min(server.getWidth(), Math.round((tx + tw) * downsample));
+					int y2 = (int) Math.min(server.getHeight(), Math.round((ty + th) * downsample));
+					if (x2 <= x || y2 <= y)
+						continue;
+					var request = RegionRequest.createInstance(serverRead.getPath(), downsample, x, y, x2 - x, y2 - y);
+					BufferedImage img = serverRead.readRegion(request);
+					if (img == null)
+						continue;
+
+					// Rounding may differ by a pixel between the tile and the output
+					int w = Math.min(tw, img.getWidth());
+					int h = Math.min(th, img.getHeight());
+					if (shownChannels != null) {
+						toGray(img, shownChannels, w, h, gray);
+					} else {
+						if (display != null)
+							img = display.applyTransforms(img, null);
+						toGray(img, display != null || server.isRGB(), w, h, gray);
+					}
+
+					for (int r = 0; r < h; r++) {
+						int offset = (ty + r) * width + tx;
+						if (bufByte != null) {
+							for (int c = 0; c < w; c++)
+								rowByte[c] = (byte) clamp(gray[r * w + c], 255);
+							bufByte.position(offset);
+							bufByte.put(rowByte, 0, w);
+						} else if (bufShort != null) {
+							for (int c = 0; c < w; c++)
+								rowShort[c] = (short) clamp(gray[r * w + c], 65535);
+							bufShort.position(offset);
+							bufShort.put(rowShort, 0, w);
+						} else {
+							bufFloat.position(offset);
+							bufFloat.put(gray, r * w, w);
+						}
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			mat.release();
+			throw e;
+		}
+		// NaN would propagate through the alignment
+		if (bufFloat != null)
+			opencv_core.patchNaNs(mat, 0);
+		return mat;
+	}
+
+	/**
+	 * Get the channels shown by a display, if they are all channels of the server shown as a fluorescence composite
+	 * and if they are fewer than the channels of the server.
+	 * @return the channels, or null if the display should be applied to images with all the channels
+	 */
+	private static List<DirectServerChannelInfo> getShownChannels(ImageServer<BufferedImage> server, ImageDisplay display) {
+		if (display == null || server.isRGB())
+			return null;
+		List<DirectServerChannelInfo> channels = new ArrayList<>();
+		for (var info : display.selectedChannels()) {
+			if (!(info instanceof DirectServerChannelInfo direct) || !info.isAdditive())
+				return null;
+			channels.add(direct);
+		}
+		if (channels.isEmpty() || channels.size() >= server.nChannels())
+			return null;
+		return channels;
+	}
+
+	/**
+	 * Convert the top left w x h pixels of an image with one band per shown channel to the luminance of their
+	 * composite: each channel is scaled to its display range and added with its color.
+	 * @param img the image, with the bands in the order of the channels
+	 * @param channels the shown channels
+	 * @param gray array to store the values, with a stride of w
+	 */
+	private static void toGray(BufferedImage img, List<DirectServerChannelInfo> channels, int w, int h, float[] gray) {
+		var raster = img.getRaster();
+		float[] r = new float[w * h];
+		float[] g = new float[w * h];
+		float[] b = new float[w * h];
+		float[] band = null;
+		for (int k = 0; k < channels.size(); k++) {
+			var info = channels.get(k);
+			Integer color = info.getColor();
+			int rgb = color == null ? 0xffffff : color;
+			float cr = ((rgb >> 16) & 0xff), cg = ((rgb >> 8) & 0xff), cb = (rgb & 0xff);
+			float min = info.getMinDisplay();
+			float range = Math.max(info.getMaxDisplay() - min, Float.MIN_NORMAL);
+			band = raster.getSamples(0, 0, w, h, k, band);
+			for (int i = 0; i < w * h; i++) {
+				float v = Math.min(1f, Math.max(0f, (band[i] - min) / range));
+				r[i] += v * cr;
+				g[i] += v * cg;
+				b[i] += v * cb;
+			}
+		}
+		for (int i = 0; i < w * h; i++)
+			gray[i] = 0.299f * Math.min(255f, r[i]) + 0.587f * Math.min(255f, g[i]) + 0.114f * Math.min(255f, b[i]);
+	}
+
+	/**
+	 * Convert the top left w x h pixels of an image to gray values.
+	 * @param img the image
+	 * @param isRGB true if the image is packed RGB, in which case the luminance is used; otherwise channels are averaged
+	 * @param gray array to store the values, with a stride of w
+	 */
+	private static void toGray(BufferedImage img, boolean isRGB, int w, int h, float[] gray) {
+		if (isRGB) {
+			int[] rgb = img.getRGB(0, 0, w, h, null, 0, w);
+			for (int i = 0; i < w * h; i++) {
+				int v = rgb[i];
+				gray[i] = 0.299f * ((v >> 16) & 0xff) + 0.587f * ((v >> 8) & 0xff) + 0.114f * (v & 0xff);
+			}
+			return;
+		}
+		var raster = img.getRaster();
+		int nBands = raster.getNumBands();
+		float[] band = null;
+		for (int b = 0; b < nBands; b++) {
+			band = raster.getSamples(0, 0, w, h, b, band);
+			if (b == 0) {
+				System.arraycopy(band, 0, gray, 0, w * h);
+			} else {
+				for (int i = 0; i < w * h; i++)
+					gray[i] += band[i];
+			}
+		}
+		if (nBands > 1) {
+			for (int i = 0; i < w * h; i++)
+				gray[i] /= nBands;
+		}
+	}
+
+	private static int clamp(float v, int max) {
+		int i = Math.round(v);
+		return i < 0 ? 0 : (i > max ? max : i);
+	}
+
+}
@@ -0,0 +1,139 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.concurrent.Task;
+import qupath.lib.display.ImageDisplay;
+import qupath.lib.images.servers.ImageServer;
+
+/**
+ * Task aligning one overlay to a base image with {@link PyramidEccAligner}, optionally followed by
+ * a local refinement with {@link LocalRegistration}.
+ * <p>
+ * Progress is reported after loading each image and after each pyramid level. Cancellation is checked
+ * between these steps (a running ECC optimization cannot be interrupted, but levels are short).
+ * The task does not modify the overlay: the result is its value, to be applied on the JavaFX application thread
+ * once the task has succeeded.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class AlignmentTask extends Task<AlignmentTask.Result> {
+
+	private static final Logger logger = LoggerFactory.getLogger(AlignmentTask.class);
+
+	// Fractions of the progress at which loading and ECC alignment are complete
+	private static final double PROGRESS_LOADED = 0.2;
+	private static final double PROGRESS_ALIGNED = 0.9;
+
+	/**
+	 * Result of an alignment.
+	 * @param affine transform from base to overlay full resolution pixels, as {mxx, mxy, tx, myx, myy, ty}
+	 * @param landmarks landmarks from the local refinement, or null if it was not requested or failed
+	 * @param localError reason why the local refinement failed, or null
+	 */
+	record Result(double[] affine, LandmarkRegistration.Landmarks landmarks, String localError) {}
+
+	private final ImageServer<BufferedImage> serverBase;
+	private final ImageDisplay displayBase;
+	private final ImageServer<BufferedImage> serverOverlay;
+	private final ImageDisplay displayOverlay;
+	private final double[] affine;
+	private final double downsample;
+	private final int motion;
+	private final boolean refineLocally;
+
+	/**
+	 * @param serverBase the base server
+	 * @param displayBase display settings of the base (may be null)
+	 * @param serverOverlay the overlay server
+	 * @param displayOverlay display settings of the overlay (may be null)
+	 * @param affine initial transform, as {mxx, mxy, tx, myx, myy, ty}
+	 * @param downsample downsample at which the images are aligned
+	 * @param motion the motion type (e.g. {@code opencv_video.MOTION_AFFINE})
+	 * @param refineLocally true to refine the affine transform with {@link LocalRegistration}
+	 */
+	AlignmentTask(ImageServer<BufferedImage> serverBase, ImageDisplay displayBase, ImageServer<BufferedImage> serverOverlay, ImageDisplay displayOverlay,
+			double[] affine, double downsample, int motion, boolean refineLocally) {
+		this.serverBase = serverBase;
+		this.displayBase = displayBase;
+		this.serverOverlay = serverOverlay;
+		this.displayOverlay = displayOverlay;
+		this.affine = affine.clone();
+		this.downsample = downsample;
+		this.motion = motion;
+		this.refineLocally = refineLocally;
+	}
+
+	@Override
+	protected Result call() throws Exception {
+		updateMessage("Loading base image");
+		updateProgress(0, 1);
+		Mat matBase = AlignmentImageLoader.readGrayscale(serverBase, downsample, displayBase);
+		Mat matOverlay = null;
+		try {
+			checkCancelled();
+			updateMessage("Loading overlay");
+			updateProgress(PROGRESS_LOADED / 2, 1);
+			matOverlay = AlignmentImageLoader.readGrayscale(serverOverlay, downsample, displayOverlay);
+			checkCancelled();
+
+			// ECC requires both images to have the same type, either 8-bit or 32-bit float
+			if (matBase.type() != matOverlay.type() || matBase.depth() != opencv_core.CV_8U) {
+				matBase.convertTo(matBase, opencv_core.CV_32F);
+				matOverlay.convertTo(matOverlay, opencv_core.CV_32F);
+			}
+
+			updateMessage("Aligning");
+			updateProgress(PROGRESS_LOADED, 1);
+			double[] result;
+			List<Mat> pyramidBase = PyramidEccAligner.buildPyramid(matBase);
+			try {
+				result = PyramidEccAligner.alignAffine(pyramidBase, matOverlay, affine, downsample, motion, (nDone, nLevels, correlation) -> {
+					checkCancelled();
+					updateMessage(String.format("Aligned level %d of %d (correlation %.3f)", nDone, nLevels, correlation));
+					updateProgress(PROGRESS_LOADED + (PROGRESS_ALIGNED - PROGRESS_LOADED) * nDone / nLevels, 1);
+				});
+			} finally {
+				PyramidEccAligner.releasePyramid(pyramidBase);
+			}
+			logger.info("Transformation result: {}", Arrays.toString(result));
+
+			LandmarkRegistration.Landmarks landmarks = null;
+			String localError = null;
+			if (refineLocally) {
+				checkCancelled();
+				updateMessage("Refining locally");
+				if (matBase.depth() != opencv_core.CV_32F) {
+					matBase.convertTo(matBase, opencv_core.CV_32F);
+					matOverlay.convertTo(matOverlay, opencv_core.CV_32F);
+				}
+				try {
+					landmarks = LocalRegistration.estimateLandmarks(matBase, matOverlay, result, downsample);
+				} catch (RuntimeException e) {
+					logger.error("Unable to refine transform locally", e);
+					localError = e.getLocalizedMessage();
+				}
+			}
+			updateProgress(1, 1);
+			return new Result(result, landmarks, localError);
+		} finally {
+			matBase.release();
+			if (matOverlay != null)
+				matOverlay.release();
+		}
+	}
+
+	private void checkCancelled() {
+		if (isCancelled())
+			throw new CancellationException();
+	}
+
+}
@@ -0,0 +1,149 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.display.ImageDisplay;
+import qupath.lib.images.servers.ImageServer;
+
+/**
+ * Task aligning several overlays to the same base image with {@link PyramidEccAligner}.
+ * <p>
+ * The base image is loaded and its pyramid built once, then shared (read only) by all the alignments,
+ * which run concurrently on a bounded pool of threads: each running alignment holds one overlay image in memory.
+ * Results are passed to the consumer of each job on the JavaFX application thread as soon as they are available,
+ * so that completed alignments are kept if the task is cancelled.
+ * The task value is the number of overlays successfully aligned.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class BatchAlignmentTask extends Task<Integer> {
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchAlignmentTask.class);
+
+	/**
+	 * An overlay to align.
+	 * @param name name of the overlay, for progress messages
+	 * @param server the server to read
+	 * @param display display settings applied before alignment (may be null)
+	 * @param affine initial transform, as {mxx, mxy, tx, myx, myy, ty}
+	 * @param onAligned called on the JavaFX application thread with the estimated transform
+	 */
+	record Job(String name, ImageServer<BufferedImage> server, ImageDisplay display, double[] affine, Consumer<double[]> onAligned) {}
+
+	private final ImageServer<BufferedImage> serverBase;
+	private final ImageDisplay displayBase;
+	private final List<Job> jobs;
+	private final double downsample;
+	private final int motion;
+	private final int nThreads;
+
+	/**
+	 * @param serverBase the base server
+	 * @param displayBase display settings of the base (may be null)
+	 * @param jobs the overlays to align
+	 * @param downsample downsample at which all the images are aligned
+	 * @param motion the motion type (e.g. {@code opencv_video.MOTION_AFFINE})
+	 * @param nThreads maximum number of concurrent alignments
+	 */
+	BatchAlignmentTask(ImageServer<BufferedImage> serverBase, ImageDisplay displayBase, List<Job> jobs, double downsample, int motion, int nThreads) {
+		this.serverBase = serverBase;
+		this.displayBase = displayBase;
+		this.jobs = List.copyOf(jobs);
+		this.downsample = downsample;
+		this.motion = motion;
+		this.nThreads = Math.max(1, Math.min(nThreads, jobs.size()));
+	}
+
+	/**
+	 * Default number of concurrent alignments: OpenCV already parallelizes parts of each alignment,
+	 * and every alignment holds an image in memory.
+	 */
+	static int getDefaultThreads() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	}
+
+	@Override
+	protected Integer call() throws Exception {
+		int nJobs = jobs.size();
+		updateMessage("Loading base image");
+		updateProgress(0, nJobs + 1);
+
+		Mat matBase = AlignmentImageLoader.readGrayscale(serverBase, downsample, displayBase);
+		// Overlays may differ in bit depth: use float for all
+		matBase.convertTo(matBase, opencv_core.CV_32F);
+		List<Mat> pyramidBase = PyramidEccAligner.buildPyramid(matBase);
+
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("imagecombinerwarpy-align", true));
+		try {
+			var completionService = new ExecutorCompletionService<Boolean>(pool);
+			for (var job : jobs)
+				completionService.submit(() -> align(job, pyramidBase));
+
+			int nDone = 0, nAligned = 0;
+			updateProgress(1, nJobs + 1);
+			updateMessage(String.format("Aligning %d images", nJobs));
+			while (nDone < nJobs) {
+				// Throws InterruptedException if the task is cancelled
+				var future = completionService.take();
+				nDone++;
+				try {
+					if (future.get())
+						nAligned++;
+				} catch (ExecutionException e) {
+					if (!(e.getCause() instanceof CancellationException))
+						logger.error("Alignment failed", e.getCause());
+				}
+				updateProgress(nDone + 1, nJobs + 1);
+				updateMessage(String.format("Aligned %d of %d images", nDone, nJobs));
+			}
+			return nAligned;
+		} finally {
+			pool.shutdownNow();
+			// Running alignments still read the base pyramid
+			if (!pool.awaitTermination(1, TimeUnit.MINUTES))
+				logger.warn("Alignments still running after cancellation - base image not released");
+			else {
+				PyramidEccAligner.releasePyramid(pyramidBase);
+				matBase.release();
+			}
+		}
+	}
+
+	private boolean align(Job job, List<Mat> pyramidBase) throws Exception {
+		if (isCancelled())
+			throw new CancellationException();
+		Mat matOverlay = AlignmentImageLoader.readGrayscale(job.server(), downsample, job.display());
+		try {
+			if (isCancelled())
+				throw new CancellationException();
+			matOverlay.convertTo(matOverlay, opencv_core.CV_32F);
+			double[] affine = PyramidEccAligner.alignAffine(pyramidBase, matOverlay, job.affine(), downsample, motion);
+			Platform.runLater(() -> job.onAligned().accept(affine));
+			return true;
+		} catch (RuntimeException e) {
+			if (e instanceof CancellationException)
+				throw e;
+			logger.warn("Unable to align {} - result did not converge", job.name(), e);
+			return false;
+		} finally {
+			matOverlay.release();
+		}
+	}
+
+}
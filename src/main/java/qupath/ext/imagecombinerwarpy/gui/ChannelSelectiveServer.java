@@ -0,0 +1,29 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Image server that can read a subset of its channels, doing only the work needed for these channels.
+ * <p>
+ * The warping servers implement this to resample only the requested channels, and {@link ChannelViewImageServer}
+ * forwards channel subsets to them, so that e.g. a single-marker analysis of a combined image does not warp
+ * every channel of every overlay.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+public interface ChannelSelectiveServer {
+
+	/**
+	 * Read a region, returning only some of the channels.
+	 * @param request the region to read
+	 * @param channels indices of the channels to read, in the order of the bands of the returned image;
+	 *                 null to read all the channels
+	 * @return the image, with one band per requested channel
+	 * @throws IOException
+	 */
+	BufferedImage readChannels(RegionRequest request, int[] channels) throws IOException;
+
+}
@@ -0,0 +1,292 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Image server exposing a selection of the channels of one or more servers, concatenated.
+ * <p>
+ * This plays the role of {@code TransformedServerBuilder.concatChannels} followed by {@code extractChannels},
+ * but reads only the servers holding the requested channels, and forwards the channel subset to servers
+ * implementing {@link ChannelSelectiveServer} (the warping servers, or another view).
+ * A view over the channels of a view (see {@link #create(ImageServer, int...)}) therefore resamples only the
+ * overlay channels that are actually needed; {@link AlignmentImageLoader} uses this to read only the channels shown
+ * by the display of an image.
+ * <p>
+ * The server is tileable, so that full regions go through the QuPath tile cache. Channel subsets requested with
+ * {@link #readChannels(RegionRequest, int[])} are not cached by this server, but the warping servers cache them.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+public class ChannelViewImageServer extends AbstractTileableImageServer implements ChannelSelectiveServer {
+
+	private final List<ImageServer<BufferedImage>> servers;
+	private final int[] channels;
+
+	// Server and channel of that server for each channel of the view
+	private final int[] serverIndex;
+	private final int[] serverChannel;
+
+	private final boolean isRGB;
+	private final ImageServerMetadata originalMetadata;
+
+	/**
+	 * Constructor.
+	 * @param servers the servers to concatenate; they should have the same size, and must have the same pixel type
+	 * @param channels the channels of the concatenation exposed by this server, or null to expose all of them
+	 * @throws IllegalArgumentException if no server is given, if the servers have different pixel types, or if a channel is invalid
+	 */
+	public ChannelViewImageServer(List<ImageServer<BufferedImage>> servers, int[] channels) {
+		super();
+		if (servers.isEmpty())
+			throw new IllegalArgumentException("At least one server is needed");
+		this.servers = List.copyOf(servers);
+		// Images are created with the pixel type of the first server, which would truncate wider pixel types
+		var pixelType = servers.get(0).getPixelType();
+		for (var server : servers) {
+			if (server.getPixelType() != pixelType)
+				throw new IllegalArgumentException("Channels can only be combined from servers with the same pixel type, but "
+						+ pixelType + " and " + server.getPixelType() + " were found");
+		}
+
+		List<ImageChannel> allChannels = new ArrayList<>();
+		List<int[]> allSources = new ArrayList<>();
+		for (int s = 0; s < servers.size(); s++) {
+			var server = servers.get(s);
+			for (int c = 0; c < server.nChannels(); c++) {
+				allChannels.add(server.getChannel(c));
+				allSources.add(new int[] {s, c});
+			}
+		}
+		if (channels == null)
+			channels = IntStream.range(0, allChannels.size()).toArray();
+		this.channels = channels.clone();
+		this.serverIndex = new int[channels.length];
+		this.serverChannel = new int[channels.length];
+		List<ImageChannel> viewChannels = new ArrayList<>();
+		for (int i = 0; i < channels.length; i++) {
+			int c = channels[i];
+			if (c < 0 || c >= allChannels.size())
+				throw new IllegalArgumentException("Invalid channel " + c + " (" + allChannels.size() + " channels available)");
+			serverIndex[i] = allSources.get(c)[0];
+			serverChannel[i] = allSources.get(c)[1];
+			viewChannels.add(allChannels.get(c));
+		}
+
+		var first = servers.get(0);
+		this.isRGB = servers.size() == 1 && first.isRGB() && Arrays.equals(this.channels, new int[] {0, 1, 2});
+		this.originalMetadata = new ImageServerMetadata.Builder(first.getMetadata())
+				.channels(viewChannels)
+				.rgb(isRGB)
+				.build();
+	}
+
+	/**
+	 * Create a server exposing some channels of another server.
+	 * If the server is itself a view, the new view is created over the same servers, so that channel subsets
+	 * are forwarded to them directly.
+	 * @param server the server
+	 * @param channels the channels of the server to expose
+	 * @return
+	 */
+	public static ChannelViewImageServer create(ImageServer<BufferedImage> server, int... channels) {
+		if (server instanceof ChannelViewImageServer view) {
+			int[] composed = Arrays.stream(channels).map(c -> view.channels[c]).toArray();
+			var newView = new ChannelViewImageServer(view.servers, composed);
+			// Keep the channel names and colors of the view, which may have been updated
+			var viewChannels = view.getMetadata().getChannels();
+			newView.setMetadata(new ImageServerMetadata.Builder(newView.getMetadata())
+					.channels(Arrays.stream(channels).mapToObj(viewChannels::get).toList())
+					.build());
+			return newView;
+		}
+		return new ChannelViewImageServer(List.of(server), channels);
+	}
+
+	@Override
+	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+		return readChannels(tileRequest.getRegionRequest(), null);
+	}
+
+	@Override
+	public BufferedImage readChannels(RegionRequest request, int[] channelsRequested) throws IOException {
+		if (channelsRequested == null && isRGB)
+			return servers.get(0).readRegion(request.updatePath(servers.get(0).getPath()));
+		int[] channels = channelsRequested == null ? IntStream.range(0, nChannels()).toArray() : channelsRequested;
+
+		// Read each server once, with only the channels needed from it
+		BufferedImage[] images = new BufferedImage[servers.size()];
+		int[] bands = new int[channels.length];
+		for (int s = 0; s < servers.size(); s++) {
+			final int ind = s;
+			int[] positions = IntStream.range(0, channels.length).filter(i -> serverIndex[channels[i]] == ind).toArray();
+			if (positions.length == 0)
+				continue;
+			var server = servers.get(s);
+			var requestServer = request.updatePath(server.getPath());
+			int[] serverChannels = Arrays.stream(positions).map(i -> serverChannel[channels[i]]).toArray();
+			if (server instanceof ChannelSelectiveServer selective) {
+				images[s] = selective.readChannels(requestServer, serverChannels);
+				for (int k = 0; k < positions.length; k++)
+					bands[positions[k]] = k;
+			} else {
+				images[s] = server.readRegion(requestServer);
+				for (int k = 0; k < positions.length; k++)
+					bands[positions[k]] = serverChannels[k];
+			}
+		}
+
+		int w = -1, h = -1;
+		for (var img : images) {
+			if (img != null && w < 0) {
+				w = img.getWidth();
+				h = img.getHeight();
+			}
+		}
+		if (w < 0)
+			return null;
+
+		var viewChannels = getMetadata().getChannels();
+		var imgChannels = Arrays.stream(channels).mapToObj(viewChannels::get).collect(Collectors.toList());
+		var imgOutput = createImage(getPixelType(), imgChannels, w, h);
+		var raster = imgOutput.getRaster();
+		for (int i = 0; i < channels.length; i++) {
+			var img = images[serverIndex[channels[i]]];
+			if (img != null)
+				copyBand(img.getRaster(), bands[i], raster, i);
+		}
+		return imgOutput;
+	}
+
+	/**
+	 * Create an image with a subset of the bands of another image.
+	 * @param img the image
+	 * @param bands the bands to keep
+	 * @param pixelType the pixel type of the image
+	 * @param imageChannels the channels of the image
+	 * @return a new image with one band per selected band
+	 */
+	static BufferedImage selectChannels(BufferedImage img, int[] bands, PixelType pixelType, List<ImageChannel> imageChannels) {
+		var channels = Arrays.stream(bands).mapToObj(imageChannels::get).collect(Collectors.toList());
+		var imgOutput = createImage(pixelType, channels, img.getWidth(), img.getHeight());
+		for (int i = 0; i < bands.length; i++)
+			copyBand(img.getRaster(), bands[i], imgOutput.getRaster(), i);
+		return imgOutput;
+	}
+
+	/**
+	 * Check whether channel indices select all the channels of a server, in order.
+	 */
+	static boolean isAllChannels(int[] channels, int nChannels) {
+		if (channels.length != nChannels)
+			return false;
+		for (int i = 0; i < channels.length; i++) {
+			if (channels[i] != i)
+				return false;
+		}
+		return true;
+	}
+
+	private static BufferedImage createImage(PixelType pixelType, List<ImageChannel> channels, int width, int height) {
+		int dataType;
+		switch (pixelType) {
+		case UINT8:
+		case INT8:
+			dataType = DataBuffer.TYPE_BYTE;
+			break;
+		case UINT16:
+			dataType = DataBuffer.TYPE_USHORT;
+			break;
+		case INT16:
+			dataType = DataBuffer.TYPE_SHORT;
+			break;
+		case UINT32:
+		case INT32:
+			dataType = DataBuffer.TYPE_INT;
+			break;
+		case FLOAT32:
+			dataType = DataBuffer.TYPE_FLOAT;
+			break;
+		default:
+			dataType = DataBuffer.TYPE_DOUBLE;
+		}
+		var raster = WritableRaster.createBandedRaster(dataType, width, height, channels.size(), null);
+		var colorModel = ColorModelFactory.createColorModel(pixelType, channels);
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	private static void copyBand(Raster source, int sourceBand, WritableRaster target, int targetBand) {
+		int w = Math.min(source.getWidth(), target.getWidth());
+		int h = Math.min(source.getHeight(), target.getHeight());
+		switch (target.getDataBuffer().getDataType()) {
+		case DataBuffer.TYPE_FLOAT:
+			target.setSamples(0, 0, w, h, targetBand, source.getSamples(0, 0, w, h, sourceBand, (float[]) null));
+			break;
+		case DataBuffer.TYPE_DOUBLE:
+			target.setSamples(0, 0, w, h, targetBand, source.getSamples(0, 0, w, h, sourceBand, (double[]) null));
+			break;
+		default:
+			target.setSamples(0, 0, w, h, targetBand, source.getSamples(0, 0, w, h, sourceBand, (int[]) null));
+		}
+	}
+
+	@Override
+	public Collection<URI> getURIs() {
+		var uris = new LinkedHashSet<URI>();
+		for (var server : servers)
+			uris.addAll(server.getURIs());
+		return uris;
+	}
+
+	@Override
+	protected String createID() {
+		return getClass().getName() + ": " + servers.stream().map(ImageServer::getPath).collect(Collectors.joining(", ", "[", "]"))
+				+ " channels " + Arrays.toString(channels);
+	}
+
+	@Override
+	public String getServerType() {
+		return "Channel view server";
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return originalMetadata;
+	}
+
+	@Override
+	protected ServerBuilder<BufferedImage> createServerBuilder() {
+		List<ServerBuilder<BufferedImage>> builders = new ArrayList<>();
+		for (var server : servers)
+			builders.add(server.getBuilder());
+		return new ChannelViewImageServerBuilder(getMetadata(), builders, channels);
+	}
+
+	@Override
+	public void close() throws Exception {
+		for (var server : servers)
+			server.close();
+	}
+
+}
@@ -0,0 +1,72 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+
+/**
+ * Builder for a {@link ChannelViewImageServer}.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+public class ChannelViewImageServerBuilder implements ServerBuilder<BufferedImage> {
+
+	private ImageServerMetadata metadata;
+
+	private List<ServerBuilder<BufferedImage>> builders;
+
+	private int[] channels;
+
+	ChannelViewImageServerBuilder(ImageServerMetadata metadata, List<ServerBuilder<BufferedImage>> builders, int[] channels) {
+		this.metadata = metadata;
+		this.builders = builders;
+		this.channels = channels;
+	}
+
+	@Override
+	public ImageServer<BufferedImage> build() throws Exception {
+		List<ImageServer<BufferedImage>> servers = new ArrayList<>();
+		for (var builder : builders)
+			servers.add(builder.build());
+		var server = new ChannelViewImageServer(servers, channels);
+		if (metadata != null)
+			server.setMetadata(metadata);
+		return server;
+	}
+
+	@Override
+	public Collection<URI> getURIs() {
+		var uris = new LinkedHashSet<URI>();
+		for (var builder : builders)
+			uris.addAll(builder.getURIs());
+		return uris;
+	}
+
+	@Override
+	public ServerBuilder<BufferedImage> updateURIs(Map<URI, URI> updateMap) {
+		boolean changes = false;
+		List<ServerBuilder<BufferedImage>> newBuilders = new ArrayList<>();
+		for (var builder : builders) {
+			var newBuilder = builder.updateURIs(updateMap);
+			changes = changes || newBuilder != builder;
+			newBuilders.add(newBuilder);
+		}
+		if (!changes)
+			return this;
+		return new ChannelViewImageServerBuilder(metadata, newBuilders, channels);
+	}
+
+	public Optional<ImageServerMetadata> getMetadata() {
+		return Optional.ofNullable(metadata);
+	}
+
+}
@@ -0,0 +1,220 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.concurrent.Task;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.gui.commands.ProjectCommands;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.images.servers.TransformingImageServer;
+import qupath.lib.images.writers.ome.OMEPyramidWriter;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Writes ('materializes') a combined image to a pyramidal OME-TIFF file and adds the file to the project.
+ * <p>
+ * The combined image is a lazy server that warps every overlay channel each time it is read.
+ * Writing it once to a tiled, compressed pyramid means that later viewing and analysis read plain pixels instead.
+ * The pixels are streamed tile by tile by {@link OMEPyramidWriter}, with tiles computed in parallel,
+ * so the whole image never needs to fit in memory.
+ * <p>
+ * Writing runs as a {@link WriteTask}, which reports progress from the number of tiles read (approximately,
+ * since the writer chooses the pyramid levels) and can be cancelled: reading stops and the partial file is deleted.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class CombinedImageExporter {
+
+	private static final Logger logger = LoggerFactory.getLogger(CombinedImageExporter.class);
+
+	// Tile size of the written file
+	static final int TILE_SIZE = 512;
+
+	// Downsample factor between consecutive pyramid levels
+	static final double PYRAMID_SCALE = 4;
+
+	// A single export at a time; each export parallelizes its own tiles
+	private static final ExecutorService pool = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("imagecombinerwarpy-export", true));
+
+	/**
+	 * Run a task writing a combined image in the background, after any previous export.
+	 * @param task the task
+	 */
+	static void submit(WriteTask task) {
+		pool.submit(task);
+	}
+
+	/**
+	 * Task writing a server to a pyramidal OME-TIFF, see {@link CombinedImageExporter#writePyramid(ImageServer, Path)}.
+	 * The value of the task is the written file.
+	 */
+	static class WriteTask extends Task<Path> {
+
+		private final ImageServer<BufferedImage> server;
+		private final Path path;
+
+		/**
+		 * @param server the server to write
+		 * @param path the output file
+		 */
+		WriteTask(ImageServer<BufferedImage> server, Path path) {
+			this.server = server;
+			this.path = path;
+		}
+
+		@Override
+		protected Path call() throws Exception {
+			long nTiles = estimateTileCount(server);
+			var nRead = new AtomicLong();
+			updateMessage("Writing " + path.getFileName());
+			updateProgress(0, nTiles);
+			var serverProgress = new ProgressServer(server, () -> {
+				if (isCancelled())
+					throw new CancellationException();
+				long n = nRead.incrementAndGet();
+				updateProgress(Math.min(n, nTiles), nTiles);
+			});
+			try {
+				writePyramid(serverProgress, path);
+			} catch (IOException | RuntimeException e) {
+				if (isCancelled()) {
+					Files.deleteIfExists(path);
+					throw new CancellationException();
+				}
+				throw e;
+			}
+			return path;
+		}
+
+	}
+
+	/**
+	 * Estimate the number of tiles read to write a server, for all its z-slices and time points.
+	 */
+	private static long estimateTileCount(ImageServer<BufferedImage> server) {
+		long nTiles = 0;
+		double downsample = 1;
+		do {
+			nTiles += (long) Math.ceil(server.getWidth() / downsample / TILE_SIZE) * (long) Math.ceil(server.getHeight() / downsample / TILE_SIZE);
+			downsample *= PYRAMID_SCALE;
+		} while (Math.max(server.getWidth(), server.getHeight()) / downsample > TILE_SIZE);
+		return Math.max(1, nTiles * server.nZSlices() * server.nTimepoints());
+	}
+
+	/**
+	 * Write a server to a pyramidal, tiled, ZLIB-compressed OME-TIFF.
+	 * @param server the server to write
+	 * @param path the output file
+	 * @throws IOException if the file could not be written
+	 */
+	static void writePyramid(ImageServer<BufferedImage> server, Path path) throws IOException {
+		Files.createDirectories(path.getParent());
+		long startTime = System.currentTimeMillis();
+		try {
+			new OMEPyramidWriter.Builder(server)
+					.tileSize(TILE_SIZE)
+					.compression(OMEPyramidWriter.CompressionType.ZLIB)
+					.scaledDownsampling(1, PYRAMID_SCALE)
+					.allZSlices()
+					.allTimePoints()
+					.parallelize()
+					.build()
+					.writeSeries(path.toString());
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Unable to write " + path, e);
+		}
+		logger.info("Combined image written to {} in {} s ({})", path, (System.currentTimeMillis() - startTime) / 1000.0, WarpMetrics.getInstance());
+	}
+
+	/**
+	 * Add a written combined image to a project, with the name, channels and image type of the combined image data.
+	 * @param project the project
+	 * @param path the written file
+	 * @param imageDataCombined the combined image data that has been written
+	 * @return the new project entry
+	 * @throws IOException if the file could not be opened or the entry could not be saved
+	 */
+	static ProjectImageEntry<BufferedImage> addToProject(Project<BufferedImage> project, Path path, ImageData<BufferedImage> imageDataCombined) throws IOException {
+		var metadataCombined = imageDataCombined.getServer().getMetadata();
+		ProjectImageEntry<BufferedImage> entry;
+		try (var server = ImageServers.buildServer(path.toUri())) {
+			entry = ProjectCommands.addSingleImageToProject(project, server, imageDataCombined.getImageType());
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Unable to add " + path + " to the project", e);
+		}
+		if (entry == null)
+			throw new IOException("Unable to add " + path + " to the project");
+		entry.setImageName(metadataCombined.getName());
+		var imageData = entry.readImageData();
+		imageData.updateServerMetadata(new ImageServerMetadata.Builder(imageData.getServer().getMetadata())
+				.name(metadataCombined.getName())
+				.channels(metadataCombined.getChannels())
+				.build());
+		entry.saveImageData(imageData);
+		project.syncChanges();
+		return entry;
+	}
+
+	/**
+	 * Server reading another server, calling a listener before each region is read.
+	 * The listener can stop the writer by throwing an exception.
+	 */
+	private static class ProgressServer extends TransformingImageServer<BufferedImage> {
+
+		private final Runnable onRead;
+
+		private ProgressServer(ImageServer<BufferedImage> server, Runnable onRead) {
+			super(server);
+			this.onRead = onRead;
+		}
+
+		@Override
+		public BufferedImage readRegion(RegionRequest request) throws IOException {
+			onRead.run();
+			var server = getWrappedServer();
+			return server.readRegion(request.updatePath(server.getPath()));
+		}
+
+		@Override
+		public ImageServerMetadata getOriginalMetadata() {
+			return getWrappedServer().getMetadata();
+		}
+
+		@Override
+		public String getServerType() {
+			return getWrappedServer().getServerType();
+		}
+
+		@Override
+		protected String createID() {
+			return getClass().getName() + ": " + getWrappedServer().getPath();
+		}
+
+		@Override
+		protected ServerBuilder<BufferedImage> createServerBuilder() {
+			return getWrappedServer().getBuilder();
+		}
+
+	}
+
+}
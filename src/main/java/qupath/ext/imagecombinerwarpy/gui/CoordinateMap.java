@@ -0,0 +1,243 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Source coordinates of the pixels of a warped tile, shared by all the servers warping with the same mapping.
+ * <p>
+ * The mapping of a tile only depends on the transform (see {@link RealTransformInterpolation#getMappingHash()}),
+ * on the size of the warped image and on the tile geometry, not on the channels being warped nor on the interpolation.
+ * Servers warping different channel subsets of the same overlay (e.g. the views created by
+ * {@link ChannelViewImageServer#create(ImageServer, int...)}), or derived images such as deconvolved stains,
+ * therefore evaluate the transform only once per tile.
+ * <p>
+ * Maps are kept in a cache bounded by the memory of their coordinates, evicting the least recently used maps.
+ * A map only stores coordinates: the function computing them is passed by the server using the map,
+ * so that cached maps never keep a server alive.
+ * <p>
+ * The map is split in blocks of {@link #BLOCK_SIZE} x {@link #BLOCK_SIZE} pixels, computed on demand, so that
+ * blocks that map outside the source are never evaluated. The corners, edge midpoints and centres of the blocks are also computed on demand, for classification.
+ * Coordinates are stored in full resolution source pixels, relative to the origin of the tile request.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class CoordinateMap {
+
+	/**
+	 * Function mapping a target pixel to full resolution source coordinates.
+	 */
+	@FunctionalInterface
+	interface Mapper {
+		/**
+		 * @param x x coordinate of the target pixel in the tile
+		 * @param y y coordinate of the target pixel in the tile
+		 * @param out array to store the source coordinates, in full resolution pixels
+		 */
+		void map(double x, double y, double[] out);
+	}
+
+	/**
+	 * Size of the blocks of the map, in target pixels.
+	 */
+	static final int BLOCK_SIZE = 16;
+
+	// Maximum memory used by the cached maps: 1/64 of the available heap, but no more than 64 MB
+	private static final long MAX_CACHE_BYTES = Math.min(Runtime.getRuntime().maxMemory() / 64, 64L * 1024L * 1024L);
+
+	private static final Map<String, CoordinateMap> cache = new LinkedHashMap<>(64, 0.75f, true);
+	private static long cacheBytes = 0;
+
+	private final double originX;
+	private final double originY;
+	private final int width;
+	private final int height;
+	private final int nBlocksX;
+	private final int nBlocksY;
+
+	private float[] sampleX;
+	private float[] sampleY;
+	private final float[][] blockX;
+	private final float[][] blockY;
+
+	private CoordinateMap(RegionRequest request, int width, int height) {
+		this.originX = request.getX();
+		this.originY = request.getY();
+		this.width = width;
+		this.height = height;
+		this.nBlocksX = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		this.nBlocksY = (height + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		this.blockX = new float[nBlocksX * nBlocksY][];
+		this.blockY = new float[nBlocksX * nBlocksY][];
+	}
+
+	/**
+	 * Get the map of a tile, creating it if needed. Coordinates are only computed when first requested.
+	 * @param mappingHash hash of the mapping, see {@link RealTransformInterpolation#getMappingHash()}
+	 * @param server the warping server, whose size is part of the key
+	 * @param request the tile request; its path, z and t are ignored
+	 * @param width width of the tile, in target pixels
+	 * @param height height of the tile, in target pixels
+	 * @return the map
+	 */
+	static CoordinateMap getInstance(String mappingHash, ImageServer<?> server, RegionRequest request, int width, int height) {
+		String key = mappingHash + " " + server.getWidth() + "x" + server.getHeight() + " " + request.getDownsample()
+				+ " " + request.getX() + " " + request.getY() + " " + width + " " + height;
+		synchronized (cache) {
+			var map = cache.get(key);
+			if (map == null) {
+				map = new CoordinateMap(request, width, height);
+				cache.put(key, map);
+				cacheBytes += map.getSizeBytes();
+				Iterator<CoordinateMap> iter = cache.values().iterator();
+				while (cacheBytes > MAX_CACHE_BYTES && iter.hasNext()) {
+					var previous = iter.next();
+					if (previous == map)
+						break;
+					cacheBytes -= previous.getSizeBytes();
+					iter.remove();
+				}
+			}
+			return map;
+		}
+	}
+
+	// Upper bound of the memory used by the map, once fully computed
+	private long getSizeBytes() {
+		return 8L * ((long) width * height + (long) (2 * nBlocksX + 1) * (2 * nBlocksY + 1));
+	}
+
+	int getNumBlocksX() {
+		return nBlocksX;
+	}
+
+	int getNumBlocksY() {
+		return nBlocksY;
+	}
+
+	/**
+	 * Get the x coordinate of the target origin of the map, in full resolution pixels.
+	 */
+	double getOriginX() {
+		return originX;
+	}
+
+	/**
+	 * Get the y coordinate of the target origin of the map, in full resolution pixels.
+	 */
+	double getOriginY() {
+		return originY;
+	}
+
+	/**
+	 * Get the source coordinates of the block corners, edge midpoints and centres, in a (2*nBlocksX+1) x (2*nBlocksY+1) grid:
+	 * block (bx, by) spans the samples [2*bx, 2*bx+2] x [2*by, 2*by+2], with its centre at (2*bx+1, 2*by+1).
+	 * The last corners are clamped to the last pixel of the tile.
+	 * @param mapper function computing the coordinates, if they have not been computed yet
+	 * @return the x and y coordinates, relative to the origin of the map
+	 */
+	synchronized float[][] getSamples(Mapper mapper) {
+		if (sampleX == null) {
+			int stride = 2 * nBlocksX + 1;
+			float[] xs = new float[stride * (2 * nBlocksY + 1)];
+			float[] ys = new float[xs.length];
+			double[] out = new double[3];
+			for (int j = 0; j < 2 * nBlocksY + 1; j++) {
+				double y = getSamplePosition(j, height);
+				for (int i = 0; i < stride; i++) {
+					mapper.map(getSamplePosition(i, width), y, out);
+					xs[j * stride + i] = (float) (out[0] - originX);
+					ys[j * stride + i] = (float) (out[1] - originY);
+				}
+			}
+			sampleX = xs;
+			sampleY = ys;
+		}
+		return new float[][] {sampleX, sampleY};
+	}
+
+	// Target position of a sample: a block corner for even indices, a block midpoint for odd indices
+	private static double getSamplePosition(int i, int size) {
+		int start = Math.min((i / 2) * BLOCK_SIZE, size - 1);
+		if (i % 2 == 0)
+			return start;
+		int end = Math.min((i / 2 + 1) * BLOCK_SIZE, size - 1);
+		return 0.5 * (start + end);
+	}
+
+	/**
+	 * Get the source coordinates of the pixels of a block, computing them if needed.
+	 * The coordinates are stored row by row, with a stride equal to the width of the block
+	 * ({@link #BLOCK_SIZE}, except for the last column of blocks).
+	 * @param bx the block column
+	 * @param by the block row
+	 * @param mapper function computing the coordinates, if they have not been computed yet
+	 * @return the x and y coordinates, relative to the origin of the map
+	 */
+	synchronized float[][] getBlock(int bx, int by, Mapper mapper) {
+		int ind = by * nBlocksX + bx;
+		if (blockX[ind] == null) {
+			int x0 = bx * BLOCK_SIZE;
+			int y0 = by * BLOCK_SIZE;
+			int bw = Math.min(BLOCK_SIZE, width - x0);
+			int bh = Math.min(BLOCK_SIZE, height - y0);
+			float[] xs = new float[bw * bh];
+			float[] ys = new float[bw * bh];
+			double[] out = new double[3];
+			for (int r = 0; r < bh; r++) {
+				for (int c = 0; c < bw; c++) {
+					mapper.map(x0 + c, y0 + r, out);
+					xs[r * bw + c] = (float) (out[0] - originX);
+					ys[r * bw + c] = (float) (out[1] - originY);
+				}
+			}
+			blockX[ind] = xs;
+			blockY[ind] = ys;
+		}
+		return new float[][] {blockX[ind], blockY[ind]};
+	}
+
+	/**
+	 * Copy the source coordinates of a row of a block, converted to the pixels of a source tile.
+	 * @param bx the block column
+	 * @param y the row in the tile
+	 * @param offsetX x offset added to the coordinates (origin of the map minus origin of the source tile, in full resolution pixels)
+	 * @param offsetY y offset added to the coordinates
+	 * @param scale scale applied after the offset (inverse of the downsample of the source tile)
+	 * @param rowX array to store the x coordinates, indexed by x in the tile
+	 * @param rowY array to store the y coordinates, indexed by x in the tile
+	 * @param mapper function computing the coordinates, if they have not been computed yet
+	 */
+	void getRow(int bx, int y, double offsetX, double offsetY, double scale, float[] rowX, float[] rowY, Mapper mapper) {
+		int by = y / BLOCK_SIZE;
+		var block = getBlock(bx, by, mapper);
+		int x0 = bx * BLOCK_SIZE;
+		int bw = Math.min(BLOCK_SIZE, width - x0);
+		int offset = (y - by * BLOCK_SIZE) * bw;
+		float[] xs = block[0];
+		float[] ys = block[1];
+		for (int c = 0; c < bw; c++) {
+			rowX[x0 + c] = (float) ((xs[offset + c] + offsetX) * scale);
+			rowY[x0 + c] = (float) ((ys[offset + c] + offsetY) * scale);
+		}
+	}
+
+	/**
+	 * Copy the source coordinates of a single pixel, converted to the pixels of a source tile.
+	 * @see #getRow(int, int, double, double, double, float[], float[], Mapper)
+	 */
+	void getPixel(int x, int y, double offsetX, double offsetY, double scale, float[] rowX, float[] rowY, Mapper mapper) {
+		int bx = x / BLOCK_SIZE;
+		int by = y / BLOCK_SIZE;
+		var block = getBlock(bx, by, mapper);
+		int bw = Math.min(BLOCK_SIZE, width - bx * BLOCK_SIZE);
+		int ind = (y - by * BLOCK_SIZE) * bw + x - bx * BLOCK_SIZE;
+		rowX[x] = (float) ((block[0][ind] + offsetX) * scale);
+		rowY[x] = (float) ((block[1][ind] + offsetY) * scale);
+	}
+
+}
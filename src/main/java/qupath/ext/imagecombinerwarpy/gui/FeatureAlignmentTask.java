@@ -0,0 +1,86 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import javafx.concurrent.Task;
+import qupath.lib.display.ImageDisplay;
+import qupath.lib.images.servers.ImageServer;
+
+/**
+ * Task aligning one overlay to a base image by matching image features, with {@link FeatureRegistration}.
+ * <p>
+ * Progress is reported after loading each image. Cancellation is checked between loading and registration
+ * (the registration itself cannot be interrupted).
+ * The task does not modify the overlay: the result is its value, to be applied on the JavaFX application thread
+ * once the task has succeeded.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class FeatureAlignmentTask extends Task<FeatureRegistration.Result> {
+
+	private final ImageServer<BufferedImage> serverBase;
+	private final ImageDisplay displayBase;
+	private final ImageServer<BufferedImage> serverOverlay;
+	private final ImageDisplay displayOverlay;
+	private final double downsample;
+	private final boolean partial;
+
+	/**
+	 * @param serverBase the base server
+	 * @param displayBase display settings of the base (may be null)
+	 * @param serverOverlay the overlay server
+	 * @param displayOverlay display settings of the overlay (may be null)
+	 * @param downsample downsample at which the images are aligned
+	 * @param partial true to fit a rotation, a uniform scale and a translation only, false for an affine transform
+	 */
+	FeatureAlignmentTask(ImageServer<BufferedImage> serverBase, ImageDisplay displayBase, ImageServer<BufferedImage> serverOverlay, ImageDisplay displayOverlay,
+			double downsample, boolean partial) {
+		this.serverBase = serverBase;
+		this.displayBase = displayBase;
+		this.serverOverlay = serverOverlay;
+		this.displayOverlay = displayOverlay;
+		this.downsample = downsample;
+		this.partial = partial;
+	}
+
+	@Override
+	protected FeatureRegistration.Result call() throws Exception {
+		updateMessage("Loading base image");
+		updateProgress(0, 3);
+		Mat matBase = AlignmentImageLoader.readGrayscale(serverBase, downsample, displayBase);
+		Mat matOverlay = null;
+		try {
+			checkCancelled();
+			updateMessage("Loading overlay");
+			updateProgress(1, 3);
+			matOverlay = AlignmentImageLoader.readGrayscale(serverOverlay, downsample, displayOverlay);
+			checkCancelled();
+
+			// Features are detected on 8-bit images
+			for (Mat mat : List.of(matBase, matOverlay)) {
+				if (mat.depth() != opencv_core.CV_8U)
+					opencv_core.normalize(mat, mat, 0, 255, opencv_core.NORM_MINMAX, opencv_core.CV_8U, null);
+			}
+			updateMessage("Matching image features");
+			updateProgress(2, 3);
+			var result = FeatureRegistration.register(matBase, matOverlay, partial, downsample);
+			updateProgress(3, 3);
+			return result;
+		} finally {
+			matBase.release();
+			if (matOverlay != null)
+				matOverlay.release();
+		}
+	}
+
+	private void checkCancelled() {
+		if (isCancelled())
+			throw new CancellationException();
+	}
+
+}
@@ -0,0 +1,318 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.bytedeco.javacpp.indexer.DoubleIndexer;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.javacpp.indexer.UByteIndexer;
+import org.bytedeco.opencv.global.opencv_calib3d;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.DMatchVectorVector;
+import org.bytedeco.opencv.opencv_core.KeyPointVector;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_features2d.BFMatcher;
+import org.bytedeco.opencv.opencv_features2d.ORB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Feature-based registration: ORB keypoints matched between the base and the overlay, and a transform fitted with RANSAC.
+ * <p>
+ * Keypoints are detected on overlapping tiles, in parallel, with a maximum number of keypoints per tile so that they
+ * are spread over the whole tissue rather than concentrated on its most textured part.
+ * The overlap covers the border ORB ignores at its coarsest scale, and only the keypoints in the core of each tile
+ * (the tile minus half the overlap with its neighbours) are kept, so that no keypoint is lost nor detected twice;
+ * a duplicated keypoint would make its matches fail the ratio test.
+ * Matches are filtered with Lowe's ratio test, then an affine (or rotation, uniform scale and translation) transform
+ * is fitted with RANSAC. Since ORB descriptors are rotation invariant, no initial transform is needed, even for large rotations.
+ * The RANSAC inliers can also be used as landmarks for a thin-plate spline, see {@link LandmarkRegistration}.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class FeatureRegistration {
+
+	private static final Logger logger = LoggerFactory.getLogger(FeatureRegistration.class);
+
+	// ORB parameters (the OpenCV defaults)
+	static final int EDGE_THRESHOLD = 31;
+	static final double SCALE_FACTOR = 1.2;
+	static final int N_LEVELS = 8;
+
+	/**
+	 * Overlap between tiles: twice the border without keypoints at the coarsest ORB scale, in pixels of the image.
+	 */
+	static final int TILE_OVERLAP = (int) Math.ceil(2 * EDGE_THRESHOLD * Math.pow(SCALE_FACTOR, N_LEVELS - 1));
+
+	/**
+	 * Size of the tiles on which features are detected.
+	 */
+	static final int TILE_SIZE = 1024;
+
+	/**
+	 * Maximum number of keypoints per tile.
+	 */
+	static final int MAX_FEATURES_PER_TILE = 500;
+
+	/**
+	 * Maximum ratio between the distances of the best and the second best match.
+	 */
+	static final double RATIO = 0.8;
+
+	/**
+	 * Maximum distance between a transformed base keypoint and its overlay match for a RANSAC inlier, in pixels of the images.
+	 */
+	static final double RANSAC_THRESHOLD = 3.0;
+
+	/**
+	 * Number of grid cells along the largest side of the base, when selecting spread inliers as spline landmarks.
+	 */
+	static final int LANDMARK_GRID = 16;
+
+	/**
+	 * Result of a registration.
+	 * @param affine transform from base to overlay full resolution pixels, as {mxx, mxy, tx, myx, myy, ty}
+	 * @param landmarks inlier matches, in full resolution pixels, at most one per cell of a grid over the base image
+	 * @param nMatches number of matches passing the ratio test
+	 */
+	record Result(double[] affine, LandmarkRegistration.Landmarks landmarks, int nMatches) {}
+
+	// Keypoint coordinates and descriptors of an image
+	private record Features(float[] x, float[] y, Mat descriptors) {
+
+		int size() {
+			return x.length;
+		}
+	}
+
+	private FeatureRegistration() {
+		// Static methods only
+	}
+
+	/**
+	 * Register an overlay to a base image.
+	 * @param matBase the base image (8-bit, single channel)
+	 * @param matOverlay the overlay image (8-bit, single channel), at the same downsample
+	 * @param partial true to fit a rotation, a uniform scale and a translation only, false for an affine transform
+	 * @param downsample the downsample of the images, to express the result in full resolution pixels
+	 * @return the result
+	 * @throws IllegalArgumentException if too few features can be matched
+	 */
+	static Result register(Mat matBase, Mat matOverlay, boolean partial, double downsample) {
+		Features featuresBase = detect(matBase);
+		Features featuresOverlay = detect(matOverlay);
+		try {
+			if (featuresBase.size() < 3 || featuresOverlay.size() < 3)
+				throw new IllegalArgumentException("Too few image features found (" + featuresBase.size() + " & " + featuresOverlay.size() + ")");
+
+			// Matches passing the ratio test, as pairs of base and overlay keypoint indices
+			List<int[]> matches = match(featuresBase, featuresOverlay);
+			int n = matches.size();
+			if (n < 3)
+				throw new IllegalArgumentException("Too few matching image features (" + n + ")");
+
+			Mat from = new Mat(n, 1, opencv_core.CV_32FC2);
+			Mat to = new Mat(n, 1, opencv_core.CV_32FC2);
+			try (FloatIndexer idxFrom = from.createIndexer(); FloatIndexer idxTo = to.createIndexer()) {
+				for (int i = 0; i < n; i++) {
+					int[] m = matches.get(i);
+					idxFrom.put(i, 0, 0, featuresBase.x()[m[0]]);
+					idxFrom.put(i, 0, 1, featuresBase.y()[m[0]]);
+					idxTo.put(i, 0, 0, featuresOverlay.x()[m[1]]);
+					idxTo.put(i, 0, 1, featuresOverlay.y()[m[1]]);
+				}
+			}
+			Mat inliers = new Mat();
+			Mat matTransform = partial ?
+					opencv_calib3d.estimateAffinePartial2D(from, to, inliers, opencv_calib3d.RANSAC, RANSAC_THRESHOLD, 2000, 0.99, 10) :
+					opencv_calib3d.estimateAffine2D(from, to, inliers, opencv_calib3d.RANSAC, RANSAC_THRESHOLD, 2000, 0.99, 10);
+			try {
+				if (matTransform == null || matTransform.empty())
+					throw new IllegalArgumentException("Unable to fit a transform to " + n + " matching image features");
+
+				double[] affine = new double[6];
+				try (DoubleIndexer indexer = matTransform.createIndexer()) {
+					for (int r = 0; r < 2; r++) {
+						affine[r * 3] = indexer.get(r, 0);
+						affine[r * 3 + 1] = indexer.get(r, 1);
+						affine[r * 3 + 2] = indexer.get(r, 2) * downsample;
+					}
+				}
+
+				var landmarks = selectLandmarks(matches, inliers, featuresBase, featuresOverlay, matBase, downsample);
+				logger.info("Feature registration: {} matches, {} inliers", n, landmarks.size());
+				return new Result(affine, landmarks, n);
+			} finally {
+				from.release();
+				to.release();
+				inliers.release();
+				if (matTransform != null)
+					matTransform.release();
+			}
+		} finally {
+			featuresBase.descriptors().release();
+			featuresOverlay.descriptors().release();
+		}
+	}
+
+	/**
+	 * Detect ORB features on overlapping tiles of an image, in parallel.
+	 */
+	private static Features detect(Mat mat) {
+		int[] xs = getTileStarts(mat.cols());
+		int[] ys = getTileStarts(mat.rows());
+		List<int[]> tiles = new ArrayList<>();
+		for (int j = 0; j < ys.length; j++) {
+			for (int i = 0; i < xs.length; i++) {
+				// Tile bounds, then bounds of its core: cores of adjacent tiles meet in the middle of their overlap
+				int x = xs[i], y = ys[j];
+				int x2 = Math.min(x + TILE_SIZE, mat.cols()), y2 = Math.min(y + TILE_SIZE, mat.rows());
+				tiles.add(new int[] {x, y, x2, y2,
+						i == 0 ? x : x + TILE_OVERLAP / 2, j == 0 ? y : y + TILE_OVERLAP / 2,
+						i == xs.length - 1 ? x2 : xs[i + 1] + TILE_OVERLAP / 2, j == ys.length - 1 ? y2 : ys[j + 1] + TILE_OVERLAP / 2});
+			}
+		}
+
+		List<Features> tileFeatures = tiles.parallelStream()
+				.map(tile -> detect(mat, tile))
+				.collect(Collectors.toList());
+
+		int n = tileFeatures.stream().mapToInt(Features::size).sum();
+		float[] x = new float[n];
+		float[] y = new float[n];
+		MatVector descriptors = new MatVector();
+		int i = 0;
+		for (var features : tileFeatures) {
+			if (features.size() == 0)
+				continue;
+			System.arraycopy(features.x(), 0, x, i, features.size());
+			System.arraycopy(features.y(), 0, y, i, features.size());
+			descriptors.push_back(features.descriptors());
+			i += features.size();
+		}
+		Mat matDescriptors = new Mat();
+		if (n > 0)
+			opencv_core.vconcat(descriptors, matDescriptors);
+		for (var features : tileFeatures)
+			features.descriptors().release();
+		descriptors.close();
+		return new Features(x, y, matDescriptors);
+	}
+
+	/**
+	 * Get the start of the tiles along one axis, the last tile ending at the end of the axis.
+	 */
+	private static int[] getTileStarts(int length) {
+		int step = TILE_SIZE - TILE_OVERLAP;
+		int n = length <= TILE_SIZE ? 1 : (length - TILE_OVERLAP + step - 1) / step;
+		int[] starts = new int[n];
+		for (int i = 0; i < n; i++)
+			starts[i] = i * step;
+		return starts;
+	}
+
+	/**
+	 * Detect the features of a tile, keeping those in its core.
+	 * @param tile the tile as {x, y, x2, y2} followed by the core as {x, y, x2, y2}
+	 */
+	private static Features detect(Mat mat, int[] tile) {
+		// Detectors are not thread-safe: one per tile
+		try (ORB orb = ORB.create(); Rect rect = new Rect(tile[0], tile[1], tile[2] - tile[0], tile[3] - tile[1]);
+				Mat roi = new Mat(mat, rect); KeyPointVector keypoints = new KeyPointVector(); Mat mask = new Mat()) {
+			orb.setMaxFeatures(MAX_FEATURES_PER_TILE);
+			orb.setEdgeThreshold(EDGE_THRESHOLD);
+			orb.setPatchSize(EDGE_THRESHOLD);
+			orb.setScaleFactor(SCALE_FACTOR);
+			orb.setNLevels(N_LEVELS);
+			Mat descriptorsTile = new Mat();
+			orb.detectAndCompute(roi, mask, keypoints, descriptorsTile);
+			try {
+				// Keypoints outside the core are detected by the neighbouring tile
+				List<Integer> kept = new ArrayList<>();
+				for (int i = 0; i < keypoints.size(); i++) {
+					var pt = keypoints.get(i).pt();
+					float px = pt.x() + tile[0], py = pt.y() + tile[1];
+					if (px >= tile[4] && px < tile[6] && py >= tile[5] && py < tile[7])
+						kept.add(i);
+				}
+				int n = kept.size();
+				float[] x = new float[n];
+				float[] y = new float[n];
+				Mat descriptors = new Mat(n, descriptorsTile.cols(), descriptorsTile.type());
+				for (int k = 0; k < n; k++) {
+					int ind = kept.get(k);
+					var pt = keypoints.get(ind).pt();
+					x[k] = pt.x() + tile[0];
+					y[k] = pt.y() + tile[1];
+					try (Mat rowSource = descriptorsTile.row(ind); Mat rowTarget = descriptors.row(k)) {
+						rowSource.copyTo(rowTarget);
+					}
+				}
+				return new Features(x, y, descriptors);
+			} finally {
+				descriptorsTile.release();
+			}
+		}
+	}
+
+	/**
+	 * Match overlay keypoints to base keypoints, keeping matches that pass the ratio test.
+	 * @return pairs of base and overlay keypoint indices
+	 */
+	private static List<int[]> match(Features featuresBase, Features featuresOverlay) {
+		List<int[]> matches = new ArrayList<>();
+		try (BFMatcher matcher = new BFMatcher(opencv_core.NORM_HAMMING, false); DMatchVectorVector knn = new DMatchVectorVector()) {
+			matcher.knnMatch(featuresBase.descriptors(), featuresOverlay.descriptors(), knn, 2);
+			for (long i = 0; i < knn.size(); i++) {
+				var pair = knn.get(i);
+				if (pair.size() < 2)
+					continue;
+				var best = pair.get(0);
+				if (best.distance() < RATIO * pair.get(1).distance())
+					matches.add(new int[] {best.queryIdx(), best.trainIdx()});
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Select RANSAC inliers as landmarks, keeping at most one per cell of a grid over the base image
+	 * so that the landmarks are spread and never (nearly) coincide.
+	 */
+	private static LandmarkRegistration.Landmarks selectLandmarks(List<int[]> matches, Mat inliers, Features featuresBase, Features featuresOverlay, Mat matBase, double downsample) {
+		double cellSize = Math.max(1.0, Math.max(matBase.cols(), matBase.rows()) / (double) LANDMARK_GRID);
+		int nCellsX = (int) Math.ceil(matBase.cols() / cellSize) + 1;
+		int nCellsY = (int) Math.ceil(matBase.rows() / cellSize) + 1;
+		boolean[] used = new boolean[nCellsX * nCellsY];
+		List<int[]> selected = new ArrayList<>();
+		try (UByteIndexer indexer = inliers.createIndexer()) {
+			for (int i = 0; i < matches.size(); i++) {
+				if (indexer.get(i) == 0)
+					continue;
+				int[] m = matches.get(i);
+				int cx = (int) (featuresBase.x()[m[0]] / cellSize);
+				int cy = (int) (featuresBase.y()[m[0]] / cellSize);
+				int cell = Math.min(cy, nCellsY - 1) * nCellsX + Math.min(cx, nCellsX - 1);
+				if (used[cell])
+					continue;
+				used[cell] = true;
+				selected.add(m);
+			}
+		}
+		int n = selected.size();
+		double[][] base = new double[2][n];
+		double[][] overlay = new double[2][n];
+		for (int i = 0; i < n; i++) {
+			int[] m = selected.get(i);
+			base[0][i] = featuresBase.x()[m[0]] * downsample;
+			base[1][i] = featuresBase.y()[m[0]] * downsample;
+			overlay[0][i] = featuresOverlay.x()[m[1]] * downsample;
+			overlay[1][i] = featuresOverlay.y()[m[1]] * downsample;
+		}
+		return new LandmarkRegistration.Landmarks(base, overlay);
+	}
+
+}
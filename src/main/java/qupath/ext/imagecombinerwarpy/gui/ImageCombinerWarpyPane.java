@@ -32,6 +32,7 @@ import java.awt.image.ComponentColorModel;
 import java.awt.image.DataBuffer;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.NumberFormat;
 import java.text.ParseException;
@@ -47,6 +48,10 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -59,11 +64,11 @@ import javafx.scene.control.Spinner;
 import javafx.scene.control.SpinnerValueFactory;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.opencv_core.Mat;
-import org.bytedeco.opencv.opencv_core.TermCriteria;
 import org.bytedeco.opencv.global.opencv_video;
 import org.bytedeco.javacpp.indexer.FloatIndexer;
 import org.bytedeco.javacpp.indexer.Indexer;
 import org.controlsfx.control.CheckListView;
+import org.controlsfx.dialog.ProgressDialog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -80,7 +85,8 @@ import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
-import javafx.embed.swing.SwingFXUtils;
+import javafx.concurrent.Task;
+import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Pos;
 import javafx.scene.Node;
@@ -112,11 +118,14 @@ import javafx.scene.transform.Affine;
 import javafx.scene.transform.MatrixType;
 import javafx.scene.transform.NonInvertibleTransformException;
 import javafx.scene.transform.TransformChangedEvent;
+import javafx.stage.Modality;
 import javafx.stage.Stage;
 import net.imglib2.realtransform.RealTransform;
 import qupath.ext.imagecombinerwarpy.gui.InterpolationModes.InterpolationType;
 import qupath.ext.warpy.Warpy;
 import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.display.ChannelDisplayInfo;
 import qupath.lib.display.ImageDisplay;
 import qupath.lib.geom.Point2;
@@ -132,7 +141,6 @@ import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerMetadata;
 import qupath.lib.images.servers.LabeledImageServer;
 import qupath.lib.images.servers.PixelCalibration;
-import qupath.lib.images.servers.PixelType;
 import qupath.lib.images.servers.ServerTools;
 import qupath.lib.images.servers.TransformedServerBuilder;
 import qupath.lib.objects.PathObject;
@@ -140,10 +148,8 @@ import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.classes.PathClassFactory;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
-import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.GeometryTools;
 import qupath.lib.scripting.QP;
-import qupath.opencv.tools.OpenCVTools;
 
 
 /**
@@ -208,7 +214,7 @@ public class ImageCombinerWarpyPane {
 	private ObjectProperty<RegistrationType> registrationType = new SimpleObjectProperty<>(RegistrationType.AFFINE);
 
 	private enum AlignmentMethod {
-			INTENSITY, AREA_ANNOTATIONS, POINT_ANNOTATIONS;
+			INTENSITY, AREA_ANNOTATIONS, POINT_ANNOTATIONS, FEATURES;
 		
 		@Override
 		public String toString() {
@@ -219,6 +225,8 @@ public class ImageCombinerWarpyPane {
 				return "Area annotations";
 			case POINT_ANNOTATIONS:
 				return "Point annotations";
+			case FEATURES:
+				return "Image features";
 			}
 			throw new IllegalArgumentException("Unknown alignment method " + this);
 		}
@@ -228,9 +236,23 @@ public class ImageCombinerWarpyPane {
 
 	private ObjectProperty<InterpolationType> interpolationType = new SimpleObjectProperty<>(InterpolationType.NEARESTNEIGHBOR);
 	private SimpleBooleanProperty downsampleTransformationField = new SimpleBooleanProperty(false);
+	private SimpleBooleanProperty refineLocally = new SimpleBooleanProperty(false);
+	private SimpleBooleanProperty previewWarpy = new SimpleBooleanProperty(false);
+	// Transform file (and modification time) of the warped server previewed by each overlay
+	private Map<ImageCombinerWarpyServerOverlay, String> warpyPreviewKeys = new WeakHashMap<>();
 	private IntegerProperty transformationFieldDownsampling = new SimpleIntegerProperty(128);
 
 	private Map<ImageData<BufferedImage>, ImageCombinerWarpyServerOverlay> mapOverlays = new WeakHashMap<>();
+
+	// Batch alignments run one at a time; each one aligns its images in parallel
+	private static final ExecutorService alignmentPool = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("imagecombinerwarpy-batch-align", true));
+
+	// Images added as overlays are read concurrently, but not too many at once since each one opens its image files
+	private static final ExecutorService imageLoadingPool = Executors.newFixedThreadPool(
+			Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())), ThreadTools.createThreadFactory("imagecombinerwarpy-load", true));
+
+	// Project entries being read to be added as overlays
+	private Set<ProjectImageEntry<BufferedImage>> pendingEntries = new HashSet<>();
 	private EventHandler<TransformChangedEvent> transformEventHandler = new EventHandler<TransformChangedEvent>() {
 		@Override
 		public void handle(TransformChangedEvent event) {
@@ -285,13 +307,6 @@ public class ImageCombinerWarpyPane {
 		this.qupath = qupath;
 		this.viewer = qupath.getViewer();
 
-		// ImageCombiner can not work with 32bit float images (yet)
-		PixelType ptype = viewer.getImageData().getServer().getPixelType(); 
-		if (ptype == PixelType.FLOAT32) {
-			Dialogs.showErrorMessage("ImageCombinerWarpy", "ImageCombiner can not work with 32bit float images.");
-			return;
-		}
-
 		this.viewer.getView().addEventFilter(MouseEvent.ANY, mouseEventHandler);
 		
 		// Create left-hand pane for list
@@ -475,7 +490,20 @@ public class ImageCombinerWarpyPane {
 		paneAutoAlign.add(labelRequestedPixelSizeMicrons, 0, row);
 		paneAutoAlign.add(tfRequestedPixelSizeMicrons, 1, row++);
 		
+		CheckBox cbRefineLocally = new CheckBox("Refine locally (spline)");
+		cbRefineLocally.setTooltip(new Tooltip("After intensity-based affine alignment, register tiles independently and write a spline transform through their centers"));
+		cbRefineLocally.selectedProperty().bindBidirectional(refineLocally);
+		cbRefineLocally.disableProperty().bind(alignmentMethod.isNotEqualTo(AlignmentMethod.INTENSITY).or(registrationType.isNotEqualTo(RegistrationType.AFFINE)));
+		paneAutoAlign.add(cbRefineLocally, 0, row++, 2, 1);
+		
 		paneAutoAlign.add(btnAutoAlign, 0, row++, 2, 1);
+
+		Button btnAutoAlignAll = new Button("Estimate transforms for all images");
+		btnAutoAlignAll.setTooltip(new Tooltip("Align all image overlays with the base image, in parallel"));
+		btnAutoAlignAll.setMaxWidth(Double.MAX_VALUE);
+		btnAutoAlignAll.disableProperty().bind(Bindings.isEmpty(images));
+		btnAutoAlignAll.setOnAction(e -> autoAlignAll(Double.parseDouble(tfRequestedPixelSizeMicrons.getText())));
+		paneAutoAlign.add(btnAutoAlignAll, 0, row++, 2, 1);
 //		paneAutoAlign.add(btnAutoAlign, 0, 1, 3, 1);
 		paneAutoAlign.setVgap(5);
 		paneAutoAlign.setHgap(5);
@@ -505,6 +533,12 @@ public class ImageCombinerWarpyPane {
 		tfImageID.textProperty().bind(selectedImageID);
 		tfWarpyFileName.textProperty().bind(selectedWarpyFileName);
 
+		CheckBox cbPreviewWarpy = new CheckBox("Preview Warpy transforms");
+		cbPreviewWarpy.setTooltip(new Tooltip("Display overlays warped by their Warpy spline transform (if any) instead of their affine transform"));
+		cbPreviewWarpy.selectedProperty().bindBidirectional(previewWarpy);
+		previewWarpy.addListener((v, o, n) -> updateWarpyPreview());
+		paneWarpy.add(cbPreviewWarpy, 0, row++, 4, 1);
+
 		paneWarpy.setVgap(5.0);		
 		paneWarpy.setHgap(5.0);		
 		TitledPane titledWarpy = new TitledPane("Warpy Info", paneWarpy);
@@ -585,6 +619,10 @@ public class ImageCombinerWarpyPane {
 		btnCreateWarpy.setOnAction(e -> {			
 			addProjectEntry(true);		
 		});
+		Button btnCreateFile = new Button("Create file");
+		btnCreateFile.setOnAction(e -> {			
+			materializeProjectEntry();		
+		});
 		btnReset.disableProperty().bind(noOverlay);
 		btnReset.setTooltip(new Tooltip("Reset the transform"));
 		btnInvert.disableProperty().bind(noOverlay);
@@ -598,8 +636,10 @@ public class ImageCombinerWarpyPane {
 		btnCreateWarpy.disableProperty().bind(noOverlay);
 		btnCreateWarpy.disableProperty().bind(noWarpy);	
 		btnCreateWarpy.setTooltip(new Tooltip("Create Warpy project entry"));
+		btnCreateFile.disableProperty().bind(noOverlay);
+		btnCreateFile.setTooltip(new Tooltip("Write the combined image to a pyramidal OME-TIFF and add it to the project"));
 		textArea.editableProperty().bind(noOverlay.not());
-		paneTransform.add(PaneTools.createColumnGridControls(btnUpdate, btnInvert, btnReset, btnCopy, btnCreate, btnCreateWarpy), 0, row++);
+		paneTransform.add(PaneTools.createColumnGridControls(btnUpdate, btnInvert, btnReset, btnCopy, btnCreate, btnCreateWarpy, btnCreateFile), 0, row++);
 		PaneTools.setFillWidth(Boolean.TRUE, paneTransform.getChildren().toArray(Node[]::new));
 		PaneTools.setHGrowPriority(Priority.ALWAYS, paneTransform.getChildren().toArray(Node[]::new));
 		paneTransform.setVgap(5.0);
@@ -668,10 +708,86 @@ public class ImageCombinerWarpyPane {
 		if (!Dialogs.showYesNoDialog("Add project entry", msg))
 			return;
 
+		ImageData<BufferedImage> imageDataCreated = createCombinedImageData(useWarpyTransformation);
+		if (imageDataCreated == null)
+			return;
+
+		// Add project entry and display the concatenated image
+		// The following command forces displaying the new image in the current viewer 
+		// and indirectly add a new project entry
+		// ToDo: Check if there is a more clear and stable solution to add a new project entry.
+		Platform.runLater(() -> {
+			try {
+				QuPathGUI.getInstance().getViewer().setImageData(imageDataCreated);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		
+	}
+
+	/**
+	 * Write the combined image to a pyramidal OME-TIFF in the project directory, add it to the project and open it.
+	 * Unlike {@link #addProjectEntry(boolean)}, the new entry reads plain pixels from the file rather than warping
+	 * the overlay images each time it is viewed or analyzed.
+	 */
+	void materializeProjectEntry() {
+		String choiceAffine = "Affine Transformation with Interpolation";
+		String choiceWarpy = "Warpy Transformation";
+		String choice = choiceAffine;
+		if (allWarpyFilesExist()) {
+			choice = Dialogs.showChoiceDialog("Create combined image file", "Transformation", new String[] {choiceAffine, choiceWarpy}, choiceAffine);
+			if (choice == null)
+				return;
+		}
+		
+		Project<BufferedImage> project = qupath.getProject();
+		if (project == null || project.getPath() == null) {
+			Dialogs.showErrorMessage("ImageCombinerWarpy", "A project is needed to create a combined image file");
+			return;
+		}
+		
+		ImageData<BufferedImage> imageDataCreated = createCombinedImageData(choiceWarpy.equals(choice));
+		if (imageDataCreated == null)
+			return;
+		
+		String name = imageDataCreated.getServer().getMetadata().getName();
+		Path path = project.getPath().getParent().resolve("combined").resolve(GeneralTools.stripInvalidFilenameChars(name) + ".ome.tif");
+		if (Files.exists(path) && !Dialogs.showConfirmDialog("Create combined image file", path + " already exists. Overwrite?"))
+			return;
+		
+		var task = new CombinedImageExporter.WriteTask(imageDataCreated.getServer(), path);
+		task.setOnSucceeded(e -> {
+			try {
+				var entry = CombinedImageExporter.addToProject(project, path, imageDataCreated);
+				qupath.refreshProject();
+				qupath.openImageEntry(entry);
+			} catch (IOException ex) {
+				logger.error("Unable to add " + path + " to the project", ex);
+				Dialogs.showErrorMessage("ImageCombinerWarpy", "Unable to add the combined image to the project: " + ex.getLocalizedMessage());
+			}
+		});
+		task.setOnFailed(e -> {
+			var exception = task.getException();
+			logger.error("Unable to write " + path, exception);
+			Dialogs.showErrorMessage("ImageCombinerWarpy", "Unable to write the combined image: " + exception.getLocalizedMessage());
+		});
+		showProgress(task, "Create combined image file", "Writing " + path.getFileName());
+		CombinedImageExporter.submit(task);
+	}
+
+	/**
+	 * Create the combined image: the selected channels of the base image, concatenated with the
+	 * transformed channels of the overlay images.
+	 * The pixels are not computed here: the returned image data wraps lazy (warping) servers.
+	 * @param useWarpyTransformation use the Warpy transformation files rather than the affine transforms
+	 * @return the combined image data, or null if the operation was aborted
+	 */
+	private ImageData<BufferedImage> createCombinedImageData(boolean useWarpyTransformation) {
 		boolean allWarpyFilesExist = allWarpyFilesExist();				
 		if (useWarpyTransformation && !allWarpyFilesExist) {
 			Dialogs.showErrorMessage("ImageCombinerWarpy", "No valid channel selection in base image. Operation aborted");
-			return;
+			return null;
 		}
 				
 		Project<BufferedImage> project = qupath.getProject();
@@ -691,7 +807,7 @@ public class ImageCombinerWarpyPane {
 		ObservableList<ChannelDisplayInfo> selectedChannelInfos = display1.selectedChannels();
 		if (selectedChannelInfos == null || selectedChannelInfos.size() == 0) {
 			Dialogs.showErrorMessage("ImageCombinerWarpy", "No channel selected in base image. Operation aborted");
-			return;
+			return null;
 		}
 		
 		boolean useRGBChannelOnly = false;
@@ -777,7 +893,7 @@ public class ImageCombinerWarpyPane {
 		
 		if (serverBase == null) {
 			Dialogs.showErrorMessage("ImageCombinerWarpy", "No valid channel selection in base image. Operation aborted");
-			return;
+			return null;
 		}
 
 		// End: Add base image 
@@ -794,12 +910,6 @@ public class ImageCombinerWarpyPane {
 			if (overlayTmp != null) { // ... it is an overlay image
 				ImageServer<BufferedImage> serverTmp = imageDataTmp.getServer();
 
-				PixelType ptype = serverTmp.getPixelType(); 
-				if (ptype == PixelType.FLOAT32) {
-					Dialogs.showErrorMessage("ImageCombinerWarpy", "ImageCombiner can not work with 32bit float images.");
-					return;
-				}
-
 				ImageDisplay displayTmp = null;
 				if (displays != null)
 					displayTmp = displays.get(i);
@@ -933,7 +1043,7 @@ public class ImageCombinerWarpyPane {
 					
 					if (serverTmp == null) {
 						Dialogs.showErrorMessage("ImageCombinerWarpy", "No valid channel selection in overlay image. Operation aborted");
-						return;
+						return null;
 					}					
 				}
 
@@ -953,7 +1063,7 @@ public class ImageCombinerWarpyPane {
 					}
 					else {
 			        	System.out.println("No transformation file " + f.getName());
-			        	return;
+			        	return null;
 					}
 									
 					int interpolationMode = interpolationType.get().ordinal();
@@ -1000,10 +1110,17 @@ public class ImageCombinerWarpyPane {
 
 		// Combine base image and transformed overlay images (Create combined/concatenated server)
 		
-		TransformedServerBuilder serverBuilderFinal = new TransformedServerBuilder(serverBase)
-		                                    			.concatChannels(transformServers);
+		// The channel view reads only the servers holding the requested channels,
+		// and lets the warping servers resample only these channels
+		List<ImageServer<BufferedImage>> combinedServers = new ArrayList<>();
+		combinedServers.add(serverBase);
+		combinedServers.addAll(transformServers);
+		if (combinedServers.stream().map(ImageServer::getPixelType).distinct().count() > 1) {
+			Dialogs.showErrorMessage("ImageCombinerWarpy", "The base image and the overlays must have the same pixel type. Operation aborted");
+			return null;
+		}
 
-		ImageServer<BufferedImage> serverFinal = serverBuilderFinal.build();
+		ImageServer<BufferedImage> serverFinal = new ChannelViewImageServer(combinedServers, null);
 
 		ImageServerMetadata newMetadata = new ImageServerMetadata.Builder(serverFinal.getMetadata())
 											.name(name1 + "_Overlay")
@@ -1021,18 +1138,7 @@ public class ImageCombinerWarpyPane {
 		QP.setChannels(imageDataCreated, channelsArray);
 		imageDataCreated.setImageType(ImageType.FLUORESCENCE);
 
-		// Add project entry and display the concatenated image
-		// The following command forces displaying the new image in the current viewer 
-		// and indirectly add a new project entry
-		// ToDo: Check if there is a more clear and stable solution to add a new project entry.
-		Platform.runLater(() -> {
-			try {
-				QuPathGUI.getInstance().getViewer().setImageData(imageDataCreated);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		});
-		
+		return imageDataCreated;
 	}
 
 	private boolean containsChannelName(List<String> channelName, String checkName) {
@@ -1093,6 +1199,8 @@ public class ImageCombinerWarpyPane {
 		// Find the entries currently selected
 		Set<ProjectImageEntry<BufferedImage>> alreadySelected = 
 				images.stream().map(i -> project.getEntry(i)).collect(Collectors.toSet());
+		// Entries still being read count as selected; deselecting them discards them once read
+		alreadySelected.addAll(pendingEntries);
 		if (currentEntry != null)
 			alreadySelected.remove(currentEntry);
 		
@@ -1139,58 +1247,94 @@ public class ImageCombinerWarpyPane {
 			}
 		}
 		
-		// Add any images that need to be added
-		List<ImageData<BufferedImage>> imagesToAdd = new ArrayList<>();
+		pendingEntries.removeAll(toRemove);
+		
+		// Images open in a viewer are added immediately, others are read concurrently and added as each one is ready
+		List<ProjectImageEntry<BufferedImage>> order = new ArrayList<>(toSelect);
 		for (ProjectImageEntry<BufferedImage> temp : toSelect) {
 			ImageData<BufferedImage> imageData = null;
 			
 			ImageDisplay displayTmp = null;
 			//::dip Support of viewer display settings
-			// Read annotations from any data file
-			try {
-				// Try to get data from an open viewer first, if possible
-				for (var viewerTmp : qupath.getAllViewers()) {
-					var tempData = viewerTmp.getImageData();
-					if (tempData != null && temp.equals(project.getEntry(viewerTmp.getImageData()))) {
-						imageData = tempData;
-						//::dip Support of viewer display settings
-						displayTmp = viewerTmp.getImageDisplay();
-						break;
-					}
+			// Try to get data from an open viewer first, if possible
+			for (var viewerTmp : qupath.getAllViewers()) {
+				var tempData = viewerTmp.getImageData();
+				if (tempData != null && temp.equals(project.getEntry(viewerTmp.getImageData()))) {
+					imageData = tempData;
+					//::dip Support of viewer display settings
+					displayTmp = viewerTmp.getImageDisplay();
+					break;
 				}
-				// Read the data from the project if necessary
-				if (imageData == null) {
-					if (temp.hasImageData()) {
-						imageData = temp.readImageData();
-						// Remove non-annotations to save memory
-						Collection<PathObject> pathObjects = imageData.getHierarchy().getObjects(null, null);
-						Set<PathObject> pathObjectsToRemove = pathObjects.stream().filter(p -> !p.isAnnotation()).collect(Collectors.toSet());
-						imageData.getHierarchy().removeObjects(pathObjectsToRemove, true);
-					} else {
-						// Read the data from the project (but without a data file we expect this to really create a new image)
-						imageData = temp.readImageData();
-					}
-				}
-			} catch (IOException e) {
-				logger.error("Unable to read ImageData for " + temp.getImageName(), e);
-				continue;
 			}
-			
-			PixelType ptype = imageData.getServer().getPixelType(); 
-			if (ptype == PixelType.FLOAT32) {
-				Dialogs.showErrorMessage("ImageCombinerWarpy", "One of your selected images is 32bit type. ImageCombiner can not work with 32bit float images.");
+			if (imageData != null) {
+				addOverlay(imageData, displayTmp, order);
 				continue;
 			}
 			
-			ImageCombinerWarpyServerOverlay overlay = new ImageCombinerWarpyServerOverlay(viewer, imageData.getServer());
-			//::dip Support of viewer display settings
-			overlay.setRenderer(displayTmp);
-			
-			overlay.getAffine().addEventHandler(TransformChangedEvent.ANY, transformEventHandler);
-			mapOverlays.put(imageData, overlay);
-			imagesToAdd.add(imageData);
+			pendingEntries.add(temp);
+			CompletableFuture.supplyAsync(() -> readOverlayImageData(temp), imageLoadingPool)
+				.whenComplete((loaded, e) -> Platform.runLater(() -> {
+					boolean wanted = pendingEntries.remove(temp);
+					if (e != null) {
+						Dialogs.showErrorNotification("ImageCombinerWarpy", "Unable to read " + temp.getImageName());
+						logger.error("Unable to read ImageData for " + temp.getImageName(), e);
+					} else if (!wanted || qupath.getProject() != project || viewer.getImageData() != imageDataCurrent
+							|| images.stream().anyMatch(i -> temp.equals(project.getEntry(i)))) {
+						// Deselected, already added, or the base image or project changed while reading
+						logger.debug("Discarding {} read for the overlays", temp.getImageName());
+					} else {
+						addOverlay(loaded, null, order);
+					}
+				}));
 		}
-		images.addAll(0, imagesToAdd);
+	}
+
+	/**
+	 * Read the image data of a project entry to add as an overlay.
+	 * The data is always read through the entry, so that the project can find the entry from it.
+	 * If the entry has a data file, objects other than annotations are removed to save memory.
+	 * Called from a background thread.
+	 */
+	private static ImageData<BufferedImage> readOverlayImageData(ProjectImageEntry<BufferedImage> entry) {
+		try {
+			boolean hasData = entry.hasImageData();
+			var imageData = entry.readImageData();
+			if (hasData) {
+				Collection<PathObject> pathObjects = imageData.getHierarchy().getObjects(null, null);
+				Set<PathObject> pathObjectsToRemove = pathObjects.stream().filter(p -> !p.isAnnotation()).collect(Collectors.toSet());
+				imageData.getHierarchy().removeObjects(pathObjectsToRemove, true);
+			}
+			return imageData;
+		} catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	/**
+	 * Create the overlay of an image and add the image to the list.
+	 * Images of the same selection are kept in the order in which they were selected, before the images already in the list.
+	 * @param imageData the image
+	 * @param display display settings of a viewer showing the image (may be null)
+	 * @param order project entries of the images in the order in which they were selected
+	 */
+	private void addOverlay(ImageData<BufferedImage> imageData, ImageDisplay display, List<ProjectImageEntry<BufferedImage>> order) {
+		ImageCombinerWarpyServerOverlay overlay = new ImageCombinerWarpyServerOverlay(viewer, imageData.getServer());
+		//::dip Support of viewer display settings
+		overlay.setRenderer(display);
+		
+		overlay.getAffine().addEventHandler(TransformChangedEvent.ANY, transformEventHandler);
+		mapOverlays.put(imageData, overlay);
+		
+		Project<BufferedImage> project = qupath.getProject();
+		int rank = order.indexOf(project.getEntry(imageData));
+		int idx = 0;
+		while (idx < images.size()) {
+			int rankOther = order.indexOf(project.getEntry(images.get(idx)));
+			if (rankOther < 0 || rankOther > rank)
+				break;
+			idx++;
+		}
+		images.add(idx, imageData);
 		
 		getDisplaysList();
 		getWarpyInfoList();
@@ -1267,8 +1411,52 @@ public class ImageCombinerWarpyPane {
 			warpyFileNames.add(warpyFileName);
 			warpyFilePaths.add(warpyFilePath);			
 		}		
+		updateWarpyPreview();
 	}
 	
+	/**
+	 * Set or clear the warped servers painted by the overlays, according to the Warpy preview setting
+	 * and to the Warpy transform files found.
+	 */
+	private void updateWarpyPreview() {
+		for (int i = 0; i < images.size(); i++) {
+			var overlay = mapOverlays.get(images.get(i));
+			if (overlay == null)
+				continue;
+			ImageServer<BufferedImage> warped = null;
+			String key = null;
+			if (previewWarpy.get() && i < warpyFilePaths.size() && !warpyFilePaths.get(i).isEmpty()) {
+				File file = new File(warpyFilePaths.get(i));
+				// Only recreate the server if the transform file has changed, since this is called whenever images are added
+				key = file.getPath() + " " + file.lastModified();
+				if (key.equals(warpyPreviewKeys.get(overlay)))
+					continue;
+				warped = createWarpyPreviewServer(overlay.getServer(), file);
+			}
+			if (key == null)
+				warpyPreviewKeys.remove(overlay);
+			else
+				warpyPreviewKeys.put(overlay, key);
+			overlay.setWarpedServer(warped);
+		}
+	}
+
+	/**
+	 * Create a server warped by a Warpy transform file for previewing, always with a downsampled transformation field.
+	 * @return the server, or null if the transform cannot be read
+	 */
+	private ImageServer<BufferedImage> createWarpyPreviewServer(ImageServer<BufferedImage> server, File file) {
+		try {
+			RealTransform realtransform = Warpy.getRealTransform(file);
+			int fieldDownsampling = transformationFieldDownsampling.get() > 0 ? transformationFieldDownsampling.get() : 128;
+			var rtis = new RealTransformInterpolation(realtransform, interpolationType.get().ordinal(), true, fieldDownsampling);
+			return new RealTransformImageServer(server, rtis);
+		} catch (NoninvertibleTransformException | RuntimeException e) {
+			logger.warn("Unable to preview Warpy transform {}: {}", file.getName(), e.getLocalizedMessage());
+			return null;
+		}
+	}
+
 	private void initWarpyInfoLists() {
 		imageIDs = new ArrayList<String>();
 		warpyFileNames =  new ArrayList<String>();
@@ -1366,71 +1554,21 @@ public class ImageCombinerWarpyPane {
 
 		if (alignmentMethod.get() == AlignmentMethod.POINT_ANNOTATIONS) {
 			logger.debug("Image alignment using point annotations");
-			logger.warn("Point annotation alignment not yet implemented!");
-			Mat transform;
-			List<Point2> pointsBase = new ArrayList<>();
-			List<Point2> pointsSelected = new ArrayList<>();
-			for (var annotation : imageDataBase.getHierarchy().getAnnotationObjects()) {
-				var roi = annotation.getROI();
-				if (roi == null || roi.isArea())
-					continue;
-				pointsBase.addAll(roi.getAllPoints());
-			}
-			for (var annotation : imageDataSelected.getHierarchy().getAnnotationObjects()) {
-				var roi = annotation.getROI();
-				if (roi == null || roi.isArea())
-					continue;
-				pointsSelected.addAll(roi.getAllPoints());
-			}
-			if (pointsBase.isEmpty() && pointsSelected.isEmpty()) {
-				Dialogs.showErrorMessage("Align images", "No points found for either image!");
-				return;
-			}
-			if (pointsBase.size() != pointsSelected.size()) {
-				Dialogs.showErrorMessage("Align images", "Images have different numbers of annotated points (" + pointsBase.size() + " & " + pointsSelected.size() + ")");
-				return;				
-			}
-			Mat matBase = pointsToMat(pointsBase);
-			Mat matSelected = pointsToMat(pointsSelected);
-			
-			transform = opencv_video.estimateRigidTransform(matBase, matSelected, registrationType.get() == RegistrationType.AFFINE);
-//			if (registrationType.get() == RegistrationType.AFFINE)
-//				transform = opencv_calib3d.estimateAffine2D(matBase, matSelected);
-//			else
-//				transform = opencv_calib3d.estimateAffinePartial2D(matBase, matSelected);
-			matToAffine(transform, affine, 1.0);
+			alignLandmarks(imageDataBase, imageDataSelected, affine);
+			return;
+		}
+
+		if (alignmentMethod.get() == AlignmentMethod.FEATURES) {
+			logger.debug("Image alignment using image features");
+			alignFeatures(imageDataBase, imageDataSelected, affine, requestedPixelSizeMicrons);
 			return;
 		}
 		
 		if (alignmentMethod.get() == AlignmentMethod.AREA_ANNOTATIONS) {
 			logger.debug("Image alignment using area annotations");
-			Map<PathClass, Integer> labels = new LinkedHashMap<>();
-			int label = 1;
-			labels.put(PathClassFactory.getPathClassUnclassified(), label++);
-			for (var annotation : imageDataBase.getHierarchy().getAnnotationObjects()) {
-				var pathClass = annotation.getPathClass();
-				if (pathClass != null && !labels.containsKey(pathClass))
-					labels.put(pathClass, label++);
-			}
-			for (var annotation : imageDataSelected.getHierarchy().getAnnotationObjects()) {
-				var pathClass = annotation.getPathClass();
-				if (pathClass != null && !labels.containsKey(pathClass))
-					labels.put(pathClass, label++);
-			}
-			
-			double downsampleBase = requestedPixelSizeMicrons / imageDataBase.getServer().getPixelCalibration().getAveragedPixelSize().doubleValue();
-			serverBase = new LabeledImageServer.Builder(imageDataBase)
-				.backgroundLabel(0)
-				.addLabels(labels)
-				.downsample(downsampleBase)
-				.build();
-			
-			double downsampleSelected = requestedPixelSizeMicrons / imageDataSelected.getServer().getPixelCalibration().getAveragedPixelSize().doubleValue();
-			serverSelected = new LabeledImageServer.Builder(imageDataSelected)
-					.backgroundLabel(0)
-					.addLabels(labels)
-					.downsample(downsampleSelected)
-					.build();
+			Map<PathClass, Integer> labels = getAnnotationLabels(List.of(imageDataBase, imageDataSelected));
+			serverBase = createLabelServer(imageDataBase, labels, requestedPixelSizeMicrons);
+			serverSelected = createLabelServer(imageDataSelected, labels, requestedPixelSizeMicrons);
 			
 		} else {
 			// Default - just use intensities
@@ -1445,26 +1583,233 @@ public class ImageCombinerWarpyPane {
 		int idxSelected = images.indexOf(imageDataSelected);
 		ImageDisplay overlayDisplay = displays.get(idxSelected);
 
-		autoAlign(serverBase, serverSelected, registrationType.get(), affine, requestedPixelSizeMicrons, viewer, overlayDisplay);
+		boolean local = refineLocally.get() && alignmentMethod.get() == AlignmentMethod.INTENSITY && registrationType.get() == RegistrationType.AFFINE;
+		double[] initial = {affine.getMxx(), affine.getMxy(), affine.getTx(), affine.getMyx(), affine.getMyy(), affine.getTy()};
+		var task = new AlignmentTask(serverBase, viewer.getImageDisplay(), serverSelected, overlayDisplay, initial,
+				getAlignmentDownsample(serverBase, requestedPixelSizeMicrons), getMotion(registrationType.get()), local);
+
+		task.setOnSucceeded(e -> {
+			// Applied in one step, so that the overlay is never drawn with a partial result
+			var result = task.getValue();
+			double[] m = result.affine();
+			affine.setToTransform(m[0], m[1], m[2], m[3], m[4], m[5]);
+			if (result.landmarks() != null)
+				writeSplineTransform(imageDataBase, imageDataSelected, result.landmarks());
+			else if (result.localError() != null)
+				Dialogs.showErrorNotification("Estimate transform", "Unable to refine transform locally: " + result.localError());
+		});
+		task.setOnFailed(e -> {
+			var exception = task.getException();
+			if (exception instanceof IOException)
+				Dialogs.showErrorMessage("Alignment error", "Error requesting image region: " + exception.getLocalizedMessage());
+			else
+				Dialogs.showErrorNotification("Estimate transform", "Unable to estimate transform - result did not converge");
+			logger.error("Unable to estimate transform", exception);
+		});
+		showProgress(task, "Aligning " + ServerTools.getDisplayableImageName(imageDataSelected.getServer()));
+		alignmentPool.submit(task);
 	}
 	
 	
-	static Mat pointsToMat(Collection<Point2> points) {
-		Mat mat = new Mat(points.size(), 2, opencv_core.CV_32FC1);
-		int r = 0;
-		FloatIndexer idx = mat.createIndexer();
-		for (var p : points) {
-			idx.put(r, 0, (float)p.getX());
-			idx.put(r, 1, (float)p.getY());
-			r++;
+	/**
+	 * Align an overlay using matching point annotations (landmarks) of the base and the overlay.
+	 * The affine transform of the overlay is updated with a least squares fit, and if both images belong to the project
+	 * a thin-plate spline interpolating the landmarks is written as the Warpy transform of the overlay.
+	 */
+	private void alignLandmarks(ImageData<BufferedImage> imageDataBase, ImageData<BufferedImage> imageDataSelected, Affine affine) {
+		LandmarkRegistration.Landmarks landmarks;
+		double[] m;
+		try {
+			landmarks = LandmarkRegistration.matchLandmarks(
+					imageDataBase.getHierarchy().getAnnotationObjects(),
+					imageDataSelected.getHierarchy().getAnnotationObjects());
+			m = LandmarkRegistration.fitAffine(landmarks, registrationType.get() == RegistrationType.RIGID);
+		} catch (IllegalArgumentException e) {
+			Dialogs.showErrorMessage("Align images", e.getLocalizedMessage());
+			return;
 		}
-		idx.release();
-		return mat;
+		affine.setToTransform(m[0], m[1], m[2], m[3], m[4], m[5]);
+		writeSplineTransform(imageDataBase, imageDataSelected, landmarks);
+	}
+
+	/**
+	 * Align an overlay by matching image features, without initial transform, in a background task.
+	 * The affine transform of the overlay is updated, and for affine registration a thin-plate spline
+	 * through the matching features is written as the Warpy transform of the overlay.
+	 */
+	private void alignFeatures(ImageData<BufferedImage> imageDataBase, ImageData<BufferedImage> imageDataSelected, Affine affine, double requestedPixelSizeMicrons) {
+		var serverBase = imageDataBase.getServer();
+		int idxSelected = images.indexOf(imageDataSelected);
+		ImageDisplay overlayDisplay = displays == null || idxSelected < 0 ? null : displays.get(idxSelected);
+		boolean partial = registrationType.get() == RegistrationType.RIGID;
+		var task = new FeatureAlignmentTask(serverBase, viewer.getImageDisplay(), imageDataSelected.getServer(), overlayDisplay,
+				getAlignmentDownsample(serverBase, requestedPixelSizeMicrons), partial);
+
+		task.setOnSucceeded(e -> {
+			var result = task.getValue();
+			double[] m = result.affine();
+			affine.setToTransform(m[0], m[1], m[2], m[3], m[4], m[5]);
+			if (!partial)
+				writeSplineTransform(imageDataBase, imageDataSelected, result.landmarks());
+		});
+		task.setOnFailed(e -> {
+			var exception = task.getException();
+			if (exception instanceof IOException)
+				Dialogs.showErrorMessage("Alignment error", "Error requesting image region: " + exception.getLocalizedMessage());
+			else if (exception instanceof IllegalArgumentException)
+				Dialogs.showErrorMessage("Align images", exception.getLocalizedMessage());
+			else
+				Dialogs.showErrorNotification("Align images", "Unable to align images: " + exception.getLocalizedMessage());
+			logger.error("Unable to align image features", exception);
+		});
+		showProgress(task, "Aligning " + ServerTools.getDisplayableImageName(imageDataSelected.getServer()));
+		alignmentPool.submit(task);
+	}
+
+	/**
+	 * Write a thin-plate spline through landmarks as the Warpy transform of an overlay, if both images belong to the project.
+	 */
+	private void writeSplineTransform(ImageData<BufferedImage> imageDataBase, ImageData<BufferedImage> imageDataSelected, LandmarkRegistration.Landmarks landmarks) {
+		Project<BufferedImage> project = qupath.getProject();
+		var entryBase = project == null ? null : project.getEntry(imageDataBase);
+		var entrySelected = project == null ? null : project.getEntry(imageDataSelected);
+		if (entryBase == null || entrySelected == null || landmarks.size() < LandmarkRegistration.MIN_SPLINE_LANDMARKS) {
+			logger.info("Spline transform not written - images must belong to the project and have at least {} landmarks", LandmarkRegistration.MIN_SPLINE_LANDMARKS);
+			return;
+		}
+		try {
+			var transform = LandmarkRegistration.fitThinPlateSpline(landmarks);
+			var path = LandmarkRegistration.writeWarpyTransform(transform, entrySelected, entryBase);
+			getWarpyInfoList();
+			noWarpy.invalidate();
+			selectedWarpyFileName.invalidate();
+			Dialogs.showInfoNotification("Align images", "Spline transform from " + landmarks.size() + " landmarks written to " + path.getFileName());
+		} catch (IOException | RuntimeException e) {
+			Dialogs.showErrorMessage("Align images", "Unable to write the spline transform: " + e.getLocalizedMessage());
+			logger.error("Unable to write spline transform", e);
+		}
+	}
+
+	/**
+	 * Align all the image overlays with the base image in the viewer, concurrently, in a background task.
+	 * Each overlay is updated as soon as its alignment is complete; the task can be cancelled from its progress dialog.
+	 * 
+	 * @param requestedPixelSizeMicrons
+	 */
+	void autoAlignAll(double requestedPixelSizeMicrons) {
+		ImageData<BufferedImage> imageDataBase = viewer.getImageData();
+		if (imageDataBase == null) {
+			Dialogs.showNoImageError("Auto-alignment");
+			return;
+		}
+		if (alignmentMethod.get() != AlignmentMethod.INTENSITY && alignmentMethod.get() != AlignmentMethod.AREA_ANNOTATIONS) {
+			Dialogs.showErrorMessage("Auto-alignment", "Aligning all images is only supported with " + AlignmentMethod.INTENSITY + " and " + AlignmentMethod.AREA_ANNOTATIONS);
+			return;
+		}
+		List<ImageData<BufferedImage>> overlays = new ArrayList<>();
+		for (var imageData : images) {
+			if (imageData != imageDataBase && mapOverlays.containsKey(imageData))
+				overlays.add(imageData);
+		}
+		if (overlays.isEmpty()) {
+			Dialogs.showErrorMessage("Auto-alignment", "No image overlays to align!");
+			return;
+		}
+
+		boolean useLabels = alignmentMethod.get() == AlignmentMethod.AREA_ANNOTATIONS;
+		Map<PathClass, Integer> labels = null;
+		if (useLabels) {
+			List<ImageData<BufferedImage>> all = new ArrayList<>(overlays);
+			all.add(0, imageDataBase);
+			labels = getAnnotationLabels(all);
+		}
+
+		List<BatchAlignmentTask.Job> jobs = new ArrayList<>();
+		for (var imageData : overlays) {
+			var affine = mapOverlays.get(imageData).getAffine();
+			int idx = images.indexOf(imageData);
+			ImageDisplay display = displays == null || idx < 0 ? null : displays.get(idx);
+			var server = useLabels ? createLabelServer(imageData, labels, requestedPixelSizeMicrons) : imageData.getServer();
+			double[] initial = {affine.getMxx(), affine.getMxy(), affine.getTx(), affine.getMyx(), affine.getMyy(), affine.getTy()};
+			jobs.add(new BatchAlignmentTask.Job(ServerTools.getDisplayableImageName(imageData.getServer()), server, display, initial,
+					v -> affine.setToTransform(v[0], v[1], v[2], v[3], v[4], v[5])));
+		}
+
+		var serverBase = useLabels ? createLabelServer(imageDataBase, labels, requestedPixelSizeMicrons) : imageDataBase.getServer();
+		var task = new BatchAlignmentTask(serverBase, viewer.getImageDisplay(), jobs,
+				getAlignmentDownsample(serverBase, requestedPixelSizeMicrons), getMotion(registrationType.get()),
+				BatchAlignmentTask.getDefaultThreads());
+
+		task.setOnSucceeded(e -> {
+			int nAligned = task.getValue();
+			if (nAligned < jobs.size())
+				Dialogs.showErrorNotification("Auto-alignment", String.format("Unable to align %d of %d images - result did not converge", jobs.size() - nAligned, jobs.size()));
+			else
+				Dialogs.showInfoNotification("Auto-alignment", String.format("%d images aligned", nAligned));
+		});
+		task.setOnFailed(e -> {
+			Dialogs.showErrorMessage("Alignment error", "Error aligning images: " + task.getException().getLocalizedMessage());
+			logger.error("Error in auto alignment", task.getException());
+		});
+		showProgress(task, "Aligning " + jobs.size() + " images");
+		alignmentPool.submit(task);
 	}
-	
 
-	//::dip modified
-	static void autoAlign(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay, RegistrationType registrationType, Affine affine, double requestedPixelSizeMicrons, QuPathViewer viewerTmp, ImageDisplay overlayDisplay) throws IOException {
+	/**
+	 * Show the progress of an alignment task, with a button to cancel it.
+	 * The dialog is not modal, so that the viewer can be used while images are aligned.
+	 */
+	private void showProgress(Task<?> task, String header) {
+		showProgress(task, "Auto-alignment", header);
+	}
+
+	/**
+	 * Show the progress of a task, with a button to cancel it, in a dialog that is not modal.
+	 */
+	private void showProgress(Task<?> task, String title, String header) {
+		var progress = new ProgressDialog(task);
+		progress.setTitle(title);
+		progress.setHeaderText(header);
+		progress.initOwner(qupath.getStage());
+		progress.initModality(Modality.NONE);
+		progress.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
+		progress.getDialogPane().lookupButton(ButtonType.CANCEL).addEventFilter(ActionEvent.ACTION, e -> task.cancel());
+	}
+
+	/**
+	 * Get labels for all the classes of the annotations of several images, for alignment using area annotations.
+	 * Label 1 is used for unclassified annotations, and 0 for the background.
+	 */
+	static Map<PathClass, Integer> getAnnotationLabels(Collection<ImageData<BufferedImage>> imageDatas) {
+		Map<PathClass, Integer> labels = new LinkedHashMap<>();
+		int label = 1;
+		labels.put(PathClassFactory.getPathClassUnclassified(), label++);
+		for (var imageData : imageDatas) {
+			for (var annotation : imageData.getHierarchy().getAnnotationObjects()) {
+				var pathClass = annotation.getPathClass();
+				if (pathClass != null && !labels.containsKey(pathClass))
+					labels.put(pathClass, label++);
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * Create a server rendering the annotations of an image as labels, for alignment using area annotations.
+	 */
+	static ImageServer<BufferedImage> createLabelServer(ImageData<BufferedImage> imageData, Map<PathClass, Integer> labels, double requestedPixelSizeMicrons) {
+		double downsample = requestedPixelSizeMicrons / imageData.getServer().getPixelCalibration().getAveragedPixelSize().doubleValue();
+		return new LabeledImageServer.Builder(imageData)
+				.backgroundLabel(0)
+				.addLabels(labels)
+				.downsample(downsample)
+				.build();
+	}
+
+	/**
+	 * Get the downsample of the base image at which images are aligned.
+	 */
+	static double getAlignmentDownsample(ImageServer<BufferedImage> serverBase, double requestedPixelSizeMicrons) {
 		PixelCalibration calBase = serverBase.getPixelCalibration();
 		double pixelSize = calBase.getAveragedPixelSizeMicrons();
 		double downsample = 1;
@@ -1475,94 +1820,35 @@ public class ImageCombinerWarpyPane {
 		} else {
 			downsample = requestedPixelSizeMicrons / calBase.getAveragedPixelSizeMicrons();			
 		}
+		return downsample;
+	}
 
-		BufferedImage imgBase = serverBase.readRegion(RegionRequest.createInstance(serverBase.getPath(), downsample, 0, 0, serverBase.getWidth(), serverBase.getHeight()));
-		BufferedImage imgOverlay = serverOverlay.readRegion(RegionRequest.createInstance(serverOverlay.getPath(), downsample, 0, 0, serverOverlay.getWidth(), serverOverlay.getHeight()));
-		
-		//::dip
-		if (viewerTmp != null)
-			imgBase = viewerTmp.getImageDisplay().applyTransforms(imgBase, null);
-		
-		if (overlayDisplay != null)
-			imgOverlay = overlayDisplay.applyTransforms(imgOverlay, null);
-		
-		imgBase = ensureGrayScale(imgBase);
-		imgOverlay = ensureGrayScale(imgOverlay);
-		
-		Mat matBase = OpenCVTools.imageToMat(imgBase);
-		Mat matOverlay = OpenCVTools.imageToMat(imgOverlay);
-		
-		// For testing
-		//OpenCVTools.matToImagePlus("matBase", matBase).show();
-		//OpenCVTools.matToImagePlus("matOverlay", matOverlay).show();
-		
-//		opencv_imgproc.threshold(matBase, matBase, opencv_imgproc.THRESH_OTSU, 255, opencv_imgproc.THRESH_BINARY_INV + opencv_imgproc.THRESH_OTSU);
-//		opencv_imgproc.threshold(matOverlay, matOverlay, opencv_imgproc.THRESH_OTSU, 255, opencv_imgproc.THRESH_BINARY_INV + opencv_imgproc.THRESH_OTSU);
-
-		Mat matTransform = Mat.eye(2, 3, opencv_core.CV_32F).asMat();
-		// Initialize using existing transform
-//		affine.setToTransform(mxx, mxy, tx, myx, myy, ty);
-		try (FloatIndexer indexer = matTransform.createIndexer()) {
-			indexer.put(0, 0, (float)affine.getMxx());
-			indexer.put(0, 1, (float)affine.getMxy());
-			indexer.put(0, 2, (float)(affine.getTx() / downsample));
-			indexer.put(1, 0, (float)affine.getMyx());
-			indexer.put(1, 1, (float)affine.getMyy());
-			indexer.put(1, 2, (float)(affine.getTy() / downsample));
-//			System.err.println(indexer);
-		} catch (Exception e) {
-			logger.error("Error closing indexer", e);
+	private static int getMotion(RegistrationType registrationType) {
+		switch (registrationType) {
+		case AFFINE:
+			return opencv_video.MOTION_AFFINE;
+		case RIGID:
+			return opencv_video.MOTION_EUCLIDEAN;
+		default:
+			logger.warn("Unknown registration type {} - will use {}", registrationType, RegistrationType.AFFINE);
+			return opencv_video.MOTION_AFFINE;
 		}
-//		// Might want to mask out completely black pixels (could indicate missing data)?
-//		def matMask = new opencv_core.Mat(matOverlay.size(), opencv_core.CV_8UC1, Scalar.ZERO);
-		TermCriteria termCrit = new TermCriteria(TermCriteria.COUNT, 100, 0.0001);
-//		OpenCVTools.matToImagePlus(matBase, "Base").show();
-//		OpenCVTools.matToImagePlus(matOverlay, "Overlay").show();
-////		
-//		Mat matTemp = new Mat();
-//		opencv_imgproc.warpAffine(matOverlay, matTemp, matTransform, matBase.size());
-//		OpenCVTools.matToImagePlus(matTemp, "Transformed").show();
-		try {
-			int motion;
-			switch (registrationType) {
-			case AFFINE:
-				motion = opencv_video.MOTION_AFFINE;
-				break;
-			case RIGID:
-				motion = opencv_video.MOTION_EUCLIDEAN;
-				break;
-			default:
-				logger.warn("Unknown registration type {} - will use {}", registrationType, RegistrationType.AFFINE);
-				motion = opencv_video.MOTION_AFFINE;
-				break;
-			}
-			double result = opencv_video.findTransformECC(matBase, matOverlay, matTransform, motion, termCrit, null);
-			logger.info("Transformation result: {}", result);
-		} catch (Exception e) {
-			Dialogs.showErrorNotification("Estimate transform", "Unable to estimate transform - result did not converge");
-			logger.error("Unable to estimate transform", e);
-			return;
+	}
+	
+	static Mat pointsToMat(Collection<Point2> points) {
+		Mat mat = new Mat(points.size(), 2, opencv_core.CV_32FC1);
+		int r = 0;
+		FloatIndexer idx = mat.createIndexer();
+		for (var p : points) {
+			idx.put(r, 0, (float)p.getX());
+			idx.put(r, 1, (float)p.getY());
+			r++;
 		}
-		
-		// To use the following function, images need to be the same size
-//		def matTransform = opencv_video.estimateRigidTransform(matBase, matOverlay, false);
-		Indexer indexer = matTransform.createIndexer();
-		affine.setToTransform(
-			indexer.getDouble(0, 0),
-			indexer.getDouble(0, 1),
-			indexer.getDouble(0, 2) * downsample,
-			indexer.getDouble(1, 0),
-			indexer.getDouble(1, 1),
-			indexer.getDouble(1, 2) * downsample
-			);
-		indexer.release();
-		
-//		matMask.release();
-		matBase.release();
-		matOverlay.release();
-		matTransform.release();
+		idx.release();
+		return mat;
 	}
 	
+
 	/**
 	 * Set the values of an Affine based on the contents of a 2x3 Mat.
 	 * @param matTransform the transform data to use
@@ -1703,9 +1989,19 @@ public class ImageCombinerWarpyPane {
 			}
 			setText(name);
 			
-			BufferedImage img = viewer.getImageRegionStore().getThumbnail(item.getServer(), 0, 0, true);
-			Image image = SwingFXUtils.toFXImage(img, null);
-			GuiTools.paintImage(viewCanvas, image);
+			// Thumbnails are loaded in the background, with a placeholder meanwhile
+			Image image = ThumbnailLoader.getCached(item.getServer());
+			if (image != null) {
+				GuiTools.paintImage(viewCanvas, image);
+			} else {
+				viewCanvas.getGraphicsContext2D().clearRect(0, 0, viewCanvas.getWidth(), viewCanvas.getHeight());
+				ProjectImageEntry<BufferedImage> entry = project == null ? null : project.getEntry(item);
+				ThumbnailLoader.load(item.getServer(), entry, loaded -> {
+					// The cell may have been reused for another image meanwhile
+					if (getItem() == item)
+						GuiTools.paintImage(viewCanvas, loaded);
+				});
+			}
 			if (getGraphic() == null)
 				setGraphic(label);
 				
@@ -22,6 +22,7 @@
 package qupath.ext.imagecombinerwarpy.gui;
 
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
@@ -29,8 +30,12 @@ import java.awt.image.BufferedImage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javafx.animation.AnimationTimer;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
 import javafx.scene.transform.Affine;
 import javafx.scene.transform.TransformChangedEvent;
+import javafx.util.Duration;
 import qupath.lib.gui.images.stores.DefaultImageRegionStore;
 import qupath.lib.gui.images.stores.ImageRenderer;
 import qupath.lib.gui.prefs.PathPrefs;
@@ -39,7 +44,9 @@ import qupath.lib.gui.viewer.overlays.AbstractOverlay;
 import qupath.lib.gui.viewer.overlays.PathOverlay;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ServerTools;
 import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
 
 /**
  * A {@link PathOverlay} implementation capable of painting one image on top of another, 
@@ -82,6 +89,43 @@ public class ImageCombinerWarpyServerOverlay extends AbstractOverlay {
 	private AffineTransform transform;
 	private AffineTransform transformInverse;
 	
+	// Server already warped into the coordinates of the base image (e.g. by a Warpy spline transform), painted instead of the affine-transformed server
+	private volatile ImageServer<BufferedImage> warpedServer;
+	
+	private final QuPathViewer viewer;
+	
+	// Time without transform changes after which the overlay is refined to full resolution
+	private static final Duration IDLE_DELAY = Duration.millis(250);
+	
+	// Factor applied to the viewer downsample while the transform is changing
+	private static final double INTERACTIVE_DOWNSAMPLE_FACTOR = 4.0;
+	
+	private boolean progressiveRendering = true;
+	private boolean transformChanging = false;
+	private boolean repaintRequested = false;
+	
+	// Transform changes only request a repaint, performed at most once per frame
+	private final AnimationTimer repaintTimer = new AnimationTimer() {
+		@Override
+		public void handle(long now) {
+			if (repaintRequested) {
+				repaintRequested = false;
+				viewer.repaintEntireImage();
+			} else
+				stop();
+		}
+	};
+	
+	private final PauseTransition idleTimer = new PauseTransition(IDLE_DELAY);
+	
+	// Maximum size of the rendered tiles cached by all the overlays: 1/32 of the available heap, but no more than 256 MB
+	private static final long RENDERED_CACHE_BYTES = Math.min(Runtime.getRuntime().maxMemory() / 32, 256L * 1024L * 1024L);
+	
+	// Tiles converted to RGB by the renderer (or with their own color model, without a renderer), keyed by their request
+	// (whose path is the server ID) with the renderer state appended to the path, so all the overlays can share a single budget.
+	// Transform changes do not affect them, so only the affine transform is reapplied when painting.
+	private static final WarpedTileCache renderedTiles = new WarpedTileCache(RENDERED_CACHE_BYTES);
+	
 	/**
 	 * Constructor.
 	 * @param viewer viewer to which the overlay should be added
@@ -99,19 +143,40 @@ public class ImageCombinerWarpyServerOverlay extends AbstractOverlay {
 	 */
 	public ImageCombinerWarpyServerOverlay(final QuPathViewer viewer, final ImageServer<BufferedImage> server, final Affine affine) {
 		super(viewer.getOverlayOptions());
+		this.viewer = viewer;
 		this.store = viewer.getImageRegionStore();
 		this.server = server;
 		this.transform = new AffineTransform();
 		this.transformInverse = null;//transform.createInverse();
 		// Request repaint any time the transform changes
 		this.affine = affine;
-		this.affine.addEventHandler(TransformChangedEvent.ANY, e ->  {
-			updateTransform();
-			viewer.repaintEntireImage();
+		this.affine.addEventHandler(TransformChangedEvent.ANY, e -> transformChanged());
+		this.idleTimer.setOnFinished(e -> {
+			transformChanging = false;
+			requestRepaint();
 		});
 		updateTransform();
 	}
 	
+	/**
+	 * Check if the overlay is painted progressively while its transform is changing.
+	 * @return
+	 * @see #setProgressiveRendering(boolean)
+	 */
+	public boolean isProgressiveRendering() {
+		return progressiveRendering;
+	}
+	
+	/**
+	 * Set if the overlay is painted progressively while its transform is changing (e.g. while it is dragged):
+	 * at a lower resolution, with the thumbnail filling in tiles that are not cached yet,
+	 * then at full resolution once the transform has not changed for a short time.
+	 * @param progressiveRendering
+	 */
+	public void setProgressiveRendering(boolean progressiveRendering) {
+		this.progressiveRendering = progressiveRendering;
+	}
+	
 	/**
 	 * Get the current renderer.
 	 * @return
@@ -125,9 +190,41 @@ public class ImageCombinerWarpyServerOverlay extends AbstractOverlay {
 	 * @param renderer
 	 */
 	public void setRenderer(ImageRenderer renderer) {
+		// Tiles rendered with the previous renderer are not used anymore and are evicted from the shared cache over time
 		this.renderer = renderer;
 	}
 	
+	/**
+	 * Get the server that is displayed, before any transform.
+	 * @return
+	 */
+	public ImageServer<BufferedImage> getServer() {
+		return server;
+	}
+	
+	/**
+	 * Get the warped server painted instead of the affine-transformed server, if any.
+	 * @return the warped server, or null if the affine transform is used
+	 */
+	public ImageServer<BufferedImage> getWarpedServer() {
+		return warpedServer;
+	}
+	
+	/**
+	 * Set a server already warped into the coordinates of the base image, e.g. a {@link RealTransformImageServer}
+	 * applying a Warpy spline transform, to paint instead of the affine-transformed server.
+	 * Tiles are requested at the current downsample of the viewer, only for the visible region, and cached
+	 * by the viewer's region store, so non-rigid results can be checked interactively.
+	 * While a warped server is set, the affine transform is ignored.
+	 * @param warpedServer the warped server, or null to paint the server with the affine transform
+	 */
+	public void setWarpedServer(ImageServer<BufferedImage> warpedServer) {
+		if (this.warpedServer == warpedServer)
+			return;
+		this.warpedServer = warpedServer;
+		viewer.repaintEntireImage();
+	}
+	
 	/**
 	 * Get the affine transform applied to the overlay image.
 	 * Making changes here will trigger repaints in the viewer.
@@ -137,6 +234,23 @@ public class ImageCombinerWarpyServerOverlay extends AbstractOverlay {
 		return affine;
 	}
 	
+	private void transformChanged() {
+		// Timers must be started on the application thread
+		if (!Platform.isFxApplicationThread()) {
+			Platform.runLater(this::transformChanged);
+			return;
+		}
+		updateTransform();
+		transformChanging = true;
+		idleTimer.playFromStart();
+		requestRepaint();
+	}
+	
+	private void requestRepaint() {
+		repaintRequested = true;
+		repaintTimer.start();
+	}
+	
 	private void updateTransform() {
 		transform.setTransform(
 			affine.getMxx(),
@@ -156,16 +270,29 @@ public class ImageCombinerWarpyServerOverlay extends AbstractOverlay {
 	@Override
 	public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, ImageData<BufferedImage> imageData, boolean paintCompletely) {
 
+		// A warped server is already in base image coordinates
+		var warped = warpedServer;
+		var serverToPaint = warped == null ? server : warped;
+
 		BufferedImage imgThumbnail = null;//store.getThumbnail(server, imageRegion.getZ(), imageRegion.getT(), true);
+		double downsample = downsampleFactor;
+		if (progressiveRendering && transformChanging) {
+			// Fewer, coarser tiles while the transform is changing, with the thumbnail (if cached) for missing tiles
+			double maxDownsample = serverToPaint.getDownsampleForResolution(serverToPaint.nResolutions() - 1);
+			downsample = Math.max(downsampleFactor, Math.min(downsampleFactor * INTERACTIVE_DOWNSAMPLE_FACTOR, maxDownsample));
+			imgThumbnail = store.getCachedThumbnail(serverToPaint, imageRegion.getZ(), imageRegion.getT());
+		}
 			
 		// Paint the image
 		Graphics2D gCopy = (Graphics2D)g2d.create();
-		if (transformInverse != null) {
-			AffineTransform transformOld = gCopy.getTransform();
-			transformOld.concatenate(transformInverse);
-			gCopy.setTransform(transformOld);
-		} else {
-			logger.debug("Inverse affine transform is null!");
+		if (warped == null) {
+			if (transformInverse != null) {
+				AffineTransform transformOld = gCopy.getTransform();
+				transformOld.concatenate(transformInverse);
+				gCopy.setTransform(transformOld);
+			} else {
+				logger.debug("Inverse affine transform is null!");
+			}
 		}
 		var composite = getAlphaComposite();
 		if (composite != null)
@@ -175,9 +302,56 @@ public class ImageCombinerWarpyServerOverlay extends AbstractOverlay {
 		else
 			gCopy.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
 
-		store.paintRegion(server, gCopy, gCopy.getClip(), imageRegion.getZ(), imageRegion.getT(), downsampleFactor, imgThumbnail, null, renderer);
+		paintRenderedTiles(gCopy, serverToPaint, imageRegion.getZ(), imageRegion.getT(), downsample, imgThumbnail);
 		gCopy.dispose();
 				
 	}
 	
+	/**
+	 * Paint the visible tiles of a server, converted to RGB by the renderer only once per tile and renderer state.
+	 * Without a renderer, tiles are converted once with their own color model, as the region store would paint them.
+	 * Tiles that have not been read yet are painted (and requested) through the region store.
+	 */
+	private void paintRenderedTiles(Graphics2D g, ImageServer<BufferedImage> server, int z, int t, double downsample, BufferedImage imgThumbnail) {
+		Rectangle bounds = new Rectangle(0, 0, server.getWidth(), server.getHeight());
+		Rectangle clip = g.getClipBounds();
+		if (clip != null)
+			bounds = bounds.intersection(clip);
+		if (bounds.isEmpty())
+			return;
+		
+		int level = ServerTools.getPreferredResolutionLevel(server, downsample);
+		var request = RegionRequest.createInstance(server.getPath(), server.getDownsampleForResolution(level), bounds.x, bounds.y, bounds.width, bounds.height, z, t);
+		var renderer = this.renderer;
+		String rendererState = renderer == null ? " default" : " " + renderer.getUniqueID() + " " + renderer.getLastChangeTimestamp();
+		for (var tile : server.getTileRequestManager().getTileRequests(request)) {
+			var tileRequest = tile.getRegionRequest();
+			var key = tileRequest.updatePath(tileRequest.getPath() + rendererState);
+			var img = renderedTiles.get(key);
+			if (img == null) {
+				var imgTile = store.getCachedTile(server, tileRequest);
+				if (imgTile != null) {
+					img = renderer == null ? toRGB(imgTile) : renderer.applyTransforms(imgTile, null);
+					renderedTiles.put(key, img);
+				}
+			}
+			if (img != null) {
+				g.drawImage(img, tile.getImageX(), tile.getImageY(), tile.getImageWidth(), tile.getImageHeight(), null);
+			} else {
+				Graphics2D gTile = (Graphics2D)g.create();
+				gTile.clipRect(tile.getImageX(), tile.getImageY(), tile.getImageWidth(), tile.getImageHeight());
+				store.paintRegion(server, gTile, gTile.getClip(), z, t, downsample, imgThumbnail, null, renderer);
+				gTile.dispose();
+			}
+		}
+	}
+
+	private static BufferedImage toRGB(BufferedImage img) {
+		var imgRGB = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = imgRGB.createGraphics();
+		g.drawImage(img, 0, 0, null);
+		g.dispose();
+		return imgRGB;
+	}
+	
 }
\ No newline at end of file
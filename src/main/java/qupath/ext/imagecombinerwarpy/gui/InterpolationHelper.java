@@ -15,12 +15,238 @@
 
 package qupath.ext.imagecombinerwarpy.gui;
 
+import java.util.EnumMap;
+import java.util.Map;
+
+import qupath.ext.imagecombinerwarpy.gui.InterpolationModes.InterpolationType;
+
 public class InterpolationHelper {
 
 	static float k1 = (float) (2.0/6.0);
 	static float k2 = (float) (1.0/6.0);
 	static float k3 = (float) (8.0/6.0);
+
+	/**
+	 * Number of subdivisions of a pixel used to tabulate the kernel weights (i.e. weights are quantized to 1/1024 pixel).
+	 */
+	public static final int KERNEL_TABLE_RESOLUTION = 1024;
+
+	/**
+	 * Maximum size of the footprint of an output pixel for {@link InterpolationType#AREAAVERAGE}, in source pixels.
+	 * Larger footprints are expected to be handled by reading a coarser pyramid level.
+	 */
+	public static final int MAX_AREA_SIZE = 16;
+
+	/**
+	 * Maximum number of source pixels covered by a footprint along one axis.
+	 */
+	public static final int MAX_AREA_TAPS = MAX_AREA_SIZE + 1;
+
+	private static final Map<InterpolationType, KernelTable> kernelTables = new EnumMap<>(InterpolationType.class);
 	
+	static {
+		for (InterpolationType type : InterpolationType.values()) {
+			float[] params = getCubicParameters(type);
+			if (params != null) {
+				float a = params[0], b = params[1];
+				kernelTables.put(type, new KernelTable(4, -1, t -> cubic(t, a, b)));
+			}
+		}
+		kernelTables.put(InterpolationType.LANCZOS3, new KernelTable(6, -2, t -> lanczos(t, 3)));
+	}
+
+	/**
+	 * Precomputed weights of a separable interpolation kernel.
+	 * <p>
+	 * For a sampling position {@code p}, the kernel covers the pixels {@code floor(p) + getOffset()} to
+	 * {@code floor(p) + getOffset() + getTaps() - 1}, and the weights only depend on the fractional part of {@code p}.
+	 * They are therefore computed once per pixel and axis, and shared across all bands.
+	 */
+	public static class KernelTable {
+
+		private final int nTaps;
+		private final int offset;
+		private final float[] weights;
+
+		KernelTable(int nTaps, int offset, KernelFunction kernel) {
+			this.nTaps = nTaps;
+			this.offset = offset;
+			this.weights = new float[(KERNEL_TABLE_RESOLUTION + 1) * nTaps];
+			for (int i = 0; i <= KERNEL_TABLE_RESOLUTION; i++) {
+				float frac = i / (float) KERNEL_TABLE_RESOLUTION;
+				float sum = 0;
+				for (int t = 0; t < nTaps; t++) {
+					weights[i * nTaps + t] = kernel.apply(frac - (offset + t));
+					sum += weights[i * nTaps + t];
+				}
+				// Normalize, so that constant images remain constant (needed for Lanczos)
+				if (sum != 0) {
+					for (int t = 0; t < nTaps; t++)
+						weights[i * nTaps + t] /= sum;
+				}
+			}
+		}
+
+		/**
+		 * Number of pixels covered by the kernel along one axis.
+		 * @return
+		 */
+		public int getTaps() {
+			return nTaps;
+		}
+
+		/**
+		 * Position of the first pixel covered by the kernel, relative to the floor of the sampling position.
+		 * @return
+		 */
+		public int getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Get the weights for a sampling position.
+		 * @param frac the fractional part of the sampling position, between 0 and 1
+		 * @param out array of length at least {@link #getTaps()} to store the weights
+		 */
+		public void getWeights(float frac, float[] out) {
+			int i = (int) (frac * KERNEL_TABLE_RESOLUTION + 0.5f);
+			System.arraycopy(weights, i * nTaps, out, 0, nTaps);
+		}
+	}
+
+	@FunctionalInterface
+	interface KernelFunction {
+		float apply(float x);
+	}
+
+	/**
+	 * Get the tabulated kernel for an interpolation type.
+	 * @param type
+	 * @return the kernel table, or null if the interpolation type does not use a tabulated kernel
+	 */
+	public static KernelTable getKernelTable(InterpolationType type) {
+		return kernelTables.get(type);
+	}
+
+	/**
+	 * Get the parameters (a, b) of {@link #cubic(float, float, float)} for a cubic interpolation type.
+	 * @param type
+	 * @return the parameters, or null if the interpolation type is not cubic
+	 */
+	public static float[] getCubicParameters(InterpolationType type) {
+		switch (type) {
+		case BICUBIC:
+			return new float[] {1, 0};
+		case CATMULLROM:
+			return new float[] {0.5f, 0};
+		case MITCHELLNETRAVALI:
+			return new float[] {(float) (1/3.0), (float) (1/3.0)};
+		case CUBICBSPLINE:
+			return new float[] {0, 1};
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Apply separable kernel weights to the pixels of a band.
+	 * @param pixels pixels of the band
+	 * @param index index of the first pixel covered by the kernel (top left)
+	 * @param width width of the band, in pixels
+	 * @param wx weights along x
+	 * @param nx number of weights along x
+	 * @param wy weights along y
+	 * @param ny number of weights along y
+	 * @return the interpolated value
+	 */
+	public static float convolve(float[] pixels, int index, int width, float[] wx, int nx, float[] wy, int ny) {
+		float sum = 0;
+		for (int ty = 0; ty < ny; ty++) {
+			float rowSum = 0;
+			for (int tx = 0; tx < nx; tx++)
+				rowSum += pixels[index + tx] * wx[tx];
+			sum += rowSum * wy[ty];
+			index += width;
+		}
+		return sum;
+	}
+
+	/**
+	 * Apply separable kernel weights to the pixels of a band stored with double precision.
+	 * @see #convolve(float[], int, int, float[], int, float[], int)
+	 */
+	public static double convolve(double[] pixels, int index, int width, float[] wx, int nx, float[] wy, int ny) {
+		double sum = 0;
+		for (int ty = 0; ty < ny; ty++) {
+			double rowSum = 0;
+			for (int tx = 0; tx < nx; tx++)
+				rowSum += pixels[index + tx] * wx[tx];
+			sum += rowSum * wy[ty];
+			index += width;
+		}
+		return sum;
+	}
+
+	/**
+	 * Compute the weights of a box filter covering the footprint of an output pixel along one axis.
+	 * <p>
+	 * Source pixel {@code u} covers the interval {@code [u-0.5, u+0.5]}, and its weight is the length of its
+	 * intersection with the footprint. The footprint is clipped to the image and the weights are normalized.
+	 * A footprint smaller than one pixel is enlarged to one pixel, which is equivalent to linear interpolation.
+	 * 
+	 * @param center center of the footprint, in source pixels
+	 * @param size size of the footprint, in source pixels
+	 * @param length number of source pixels along the axis
+	 * @param weights array of length at least {@link #MAX_AREA_TAPS} to store the weights
+	 * @param range array of length 2 to store the index of the first source pixel and the number of weights
+	 */
+	public static void getAreaWeights(float center, float size, int length, float[] weights, int[] range) {
+		float half = Math.min(Math.max(size, 1f), MAX_AREA_SIZE) * 0.5f;
+		float lo = center - half;
+		float hi = center + half;
+		int first = Math.max(0, (int) Math.floor(lo + 0.5f));
+		int last = Math.min(length - 1, (int) Math.floor(hi + 0.5f));
+		float sum = 0;
+		int n = 0;
+		for (int u = first; u <= last; u++) {
+			float w = Math.min(hi, u + 0.5f) - Math.max(lo, u - 0.5f);
+			weights[n++] = Math.max(w, 0);
+			sum += weights[n-1];
+		}
+		if (sum > 0) {
+			for (int i = 0; i < n; i++)
+				weights[i] /= sum;
+		}
+		range[0] = first;
+		range[1] = n;
+	}
+
+	/**
+	 * Choose the pyramid level closest to a downsample (in log scale).
+	 * @param dsLevels downsamples of the pyramid levels, in increasing order
+	 * @param ds the requested downsample
+	 * @return the closest downsample of the pyramid
+	 */
+	public static double getNearestDownsample(double[] dsLevels, double ds) {
+		double best = dsLevels[0];
+		for (double level : dsLevels) {
+			if (Math.abs(Math.log(level / ds)) < Math.abs(Math.log(best / ds)))
+				best = level;
+		}
+		return best;
+	}
+
+	// Lanczos kernel with a lobes
+	static float lanczos(float x, int a) {
+		if (x < 0) x = -x;
+		if (x < 1e-6f)
+			return 1;
+		if (x >= a)
+			return 0;
+		double px = Math.PI * x;
+		return (float) (a * Math.sin(px) * Math.sin(px / a) / (px * px));
+	}
+
 	// Portion from Burger&Burge, Digital Image Processing, 2010
 	// https://en.wikipedia.org/wiki/Bicubic_interpolation
 	public static float cubic(float x, float a, float b) {
@@ -32,7 +258,7 @@ public class InterpolationHelper {
 		if (x < 0) x = -x;
 		float z = 0;
 		if (x < 1)
-			z = (-a - 1.5f*b + 2)*x*x*x + (a + 2*b - 3)*x*x + 1 - k1;
+			z = (-a - 1.5f*b + 2)*x*x*x + (a + 2*b - 3)*x*x + 1 - k1*b;
 		else if (x < 2)
 			z = (-a - k2*b)*x*x*x + (5*a + b)*x*x + (-8*a - 2*b)*x + 4*a + k3*b;
 		return z;
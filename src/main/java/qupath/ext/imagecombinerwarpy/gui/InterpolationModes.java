@@ -17,7 +17,9 @@ package qupath.ext.imagecombinerwarpy.gui;
 public class InterpolationModes {
 
 	public enum InterpolationType {
-		NEARESTNEIGHBOR, BILINEAR, BICUBIC, CATMULLROM, MITCHELLNETRAVALI, CUBICBSPLINE;
+		NEARESTNEIGHBOR, BILINEAR, BICUBIC, CATMULLROM, MITCHELLNETRAVALI, CUBICBSPLINE,
+		// New types are appended: the ordinals are serialized with the warped servers
+		LANCZOS3, AREAAVERAGE;
 
 		@Override
 		public String toString() {
@@ -34,11 +36,28 @@ public class InterpolationModes {
 				return "Mitchell-Netravali";
 			case CUBICBSPLINE:
 				return "Cubic B-spline";
+			case LANCZOS3:
+				return "Lanczos-3";
+			case AREAAVERAGE:
+				return "Area average";
 			}
 			throw new IllegalArgumentException("Unknown interpolation type " + this);
 		}
 	}
 
+	/**
+	 * Check whether an interpolation type filters the source image according to the output sampling,
+	 * so that downsampled views can be computed from the nearest pyramid level without aliasing.
+	 * <p>
+	 * Only area averaging integrates over the footprint of each output pixel. The Lanczos-3 kernel is sampled
+	 * at the source resolution, like the cubic kernels, so it must read a level at least as coarse as the output.
+	 * @param interpolationtype
+	 * @return
+	 */
+	public static boolean isAntiAliased(InterpolationType interpolationtype) {
+		return interpolationtype == InterpolationType.AREAAVERAGE;
+	}
+
 	public static InterpolationType getInterpolationType(int ordinal) {
 		return InterpolationType.values()[ordinal];
 	}
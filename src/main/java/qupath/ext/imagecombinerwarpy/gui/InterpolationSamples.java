@@ -0,0 +1,270 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+import qupath.ext.imagecombinerwarpy.gui.InterpolationModes.InterpolationType;
+import qupath.lib.images.servers.PixelType;
+
+/**
+ * Samples of a source raster prepared for interpolation by the warping image servers, for any {@link PixelType}.
+ * <p>
+ * Types with at most 24 significant bits (8 and 16-bit integers, 32-bit float) are interpolated in single precision,
+ * 32-bit integers and 64-bit float in double precision.
+ * Packed RGB images are handled as {@link PixelType#UINT8}, since their raster exposes one band per color component.
+ * Interpolated values are rounded and clamped to the range of the pixel type when written back,
+ * and signed 8-bit values are sign-extended when read.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+abstract class InterpolationSamples {
+
+	protected final PixelType pixelType;
+	protected final int width;
+	protected final int height;
+	protected final int nBands;
+
+	private int[] rowInt;
+	private float[] rowFloat;
+
+	// Batch of target pixels for row-wise interpolation, in structure-of-arrays layout
+	protected int[] batchTarget;
+	protected int[] batchIndex;
+	protected float[] batchKa;
+	protected float[] batchKb;
+
+	private InterpolationSamples(Raster raster, PixelType pixelType) {
+		this.pixelType = pixelType;
+		this.width = raster.getWidth();
+		this.height = raster.getHeight();
+		this.nBands = raster.getNumBands();
+	}
+
+	/**
+	 * Extract the samples of all the bands of an image.
+	 * @param img the source image
+	 * @param pixelType the pixel type of the server the image was read from
+	 * @param interpolation the interpolation, only used to report unsupported types
+	 * @return
+	 * @throws UnsupportedImageTypeException if the samples of the image cannot be interpolated
+	 */
+	static InterpolationSamples create(BufferedImage img, PixelType pixelType, InterpolationType interpolation) throws UnsupportedImageTypeException {
+		var raster = img.getRaster();
+		if (img.getColorModel() instanceof IndexColorModel)
+			throw new UnsupportedImageTypeException("Indexed color images only support " + InterpolationType.NEARESTNEIGHBOR + " interpolation, not " + interpolation);
+		if (raster.getDataBuffer().getDataType() == DataBuffer.TYPE_UNDEFINED || pixelType == null)
+			throw new UnsupportedImageTypeException("Unsupported data type for " + interpolation + " interpolation: " + raster.getDataBuffer().getClass().getSimpleName());
+		switch (pixelType) {
+		case INT32:
+		case UINT32:
+		case FLOAT64:
+			return new DoubleSamples(raster, pixelType);
+		default:
+			return new FloatSamples(raster, pixelType);
+		}
+	}
+
+	int getNumBands() {
+		return nBands;
+	}
+
+	/**
+	 * Bilinear interpolation of a run of target pixels.
+	 * <p>
+	 * Indices and weights are computed once for the whole run, then each band is interpolated in a tight loop
+	 * over the batch, which keeps the band in cache and lets the JIT compile straight-line arithmetic
+	 * rather than a per-pixel loop over bands.
+	 * Pixels whose coordinates fall outside the source (or on its last row or column) are left unchanged.
+	 * 
+	 * @param xs x coordinates in the source, in pixels, indexed by target x
+	 * @param ys y coordinates in the source, in pixels, indexed by target x
+	 * @param x0 first target pixel (inclusive)
+	 * @param x1 last target pixel (exclusive)
+	 * @param values values of each band, indexed by target x
+	 */
+	void bilinearRow(float[] xs, float[] ys, int x0, int x1, double[][] values) {
+		if (batchTarget == null || batchTarget.length < x1 - x0) {
+			int n = x1 - x0;
+			batchTarget = new int[n];
+			batchIndex = new int[n];
+			batchKa = new float[n];
+			batchKb = new float[n];
+		}
+		// Portion from Burger&Burge, Digital Image Processing, 2010
+		float xMax = width - 1;
+		float yMax = height - 1;
+		int n = 0;
+		for (int x = x0; x < x1; x++) {
+			float fx = xs[x];
+			float fy = ys[x];
+			if (fx >= 0 && fy >= 0 && fx < xMax && fy < yMax) {
+				// Truncation is the floor for non-negative values
+				int xx = (int) fx;
+				int yy = (int) fy;
+				batchTarget[n] = x;
+				batchIndex[n] = yy * width + xx;
+				batchKa[n] = fx - xx;
+				batchKb[n] = fy - yy;
+				n++;
+			}
+		}
+		for (int b = 0; b < nBands; b++)
+			bilinearBatch(b, n, values[b]);
+	}
+
+	/**
+	 * Interpolate one band for the first n entries of the current batch.
+	 */
+	abstract void bilinearBatch(int b, int n, double[] values);
+
+	/**
+	 * Apply separable kernel weights to a band.
+	 * @see InterpolationHelper#convolve(float[], int, int, float[], int, float[], int)
+	 */
+	abstract double convolve(int b, int index, float[] wx, int nx, float[] wy, int ny);
+
+	/**
+	 * Write a row of interpolated values to a raster of the same type as the source, rounding and clamping as needed.
+	 * @param raster the target raster
+	 * @param y the row
+	 * @param values the values of each band, of length at least the width of the raster
+	 */
+	void writeRow(WritableRaster raster, int y, double[][] values) {
+		int w = raster.getWidth();
+		for (int b = 0; b < nBands; b++) {
+			double[] v = values[b];
+			switch (pixelType) {
+			case FLOAT32:
+				if (rowFloat == null || rowFloat.length != w)
+					rowFloat = new float[w];
+				for (int x = 0; x < w; x++)
+					rowFloat[x] = (float) v[x];
+				raster.setSamples(0, y, w, 1, b, rowFloat);
+				break;
+			case FLOAT64:
+				raster.setSamples(0, y, w, 1, b, v);
+				break;
+			case UINT32:
+				// Stored as the bits of a signed int
+				if (rowInt == null || rowInt.length != w)
+					rowInt = new int[w];
+				for (int x = 0; x < w; x++)
+					rowInt[x] = (int) Math.round(clamp(v[x], 0, 4294967295.0));
+				raster.setSamples(0, y, w, 1, b, rowInt);
+				break;
+			default:
+				// Integer types up to 32 bits; the raster truncates INT8 and INT16 to their two's complement bits
+				if (rowInt == null || rowInt.length != w)
+					rowInt = new int[w];
+				double min = pixelType.getLowerBound().doubleValue();
+				double max = pixelType.getUpperBound().doubleValue();
+				for (int x = 0; x < w; x++)
+					rowInt[x] = (int) Math.round(clamp(v[x], min, max));
+				raster.setSamples(0, y, w, 1, b, rowInt);
+			}
+		}
+	}
+
+	private static double clamp(double v, double min, double max) {
+		return v < min ? min : (v > max ? max : v);
+	}
+
+	/**
+	 * Get the value of an integer sample read from a raster, according to the pixel type.
+	 */
+	private static double toValue(int sample, boolean isSigned8, boolean isUnsigned32) {
+		if (isSigned8)
+			return (byte) sample;
+		if (isUnsigned32)
+			return Integer.toUnsignedLong(sample);
+		return sample;
+	}
+
+
+	private static class FloatSamples extends InterpolationSamples {
+
+		private final float[][] pixels;
+
+		private FloatSamples(Raster raster, PixelType pixelType) {
+			super(raster, pixelType);
+			pixels = new float[nBands][];
+			boolean isSigned8 = pixelType == PixelType.INT8 && raster.getDataBuffer().getDataType() == DataBuffer.TYPE_BYTE;
+			boolean isUnsigned32 = pixelType == PixelType.UINT32;
+			for (int b = 0; b < nBands; b++) {
+				if (pixelType == PixelType.FLOAT32) {
+					pixels[b] = raster.getSamples(0, 0, width, height, b, (float[]) null);
+				} else {
+					int[] samples = raster.getSamples(0, 0, width, height, b, (int[]) null);
+					var band = new float[samples.length];
+					for (int i = 0; i < samples.length; i++)
+						band[i] = (float) toValue(samples[i], isSigned8, isUnsigned32);
+					pixels[b] = band;
+				}
+			}
+		}
+
+		@Override
+		void bilinearBatch(int b, int n, double[] values) {
+			float[] p = pixels[b];
+			for (int i = 0; i < n; i++) {
+				int index = batchIndex[i];
+				float ka = batchKa[i];
+				float pA = p[index] + ka*(p[index + 1] - p[index]);
+				float pB = p[index + width] + ka*(p[index + width + 1] - p[index + width]);
+				values[batchTarget[i]] = pA + batchKb[i]*(pB - pA);
+			}
+		}
+
+		@Override
+		double convolve(int b, int index, float[] wx, int nx, float[] wy, int ny) {
+			return InterpolationHelper.convolve(pixels[b], index, width, wx, nx, wy, ny);
+		}
+
+	}
+
+
+	private static class DoubleSamples extends InterpolationSamples {
+
+		private final double[][] pixels;
+
+		private DoubleSamples(Raster raster, PixelType pixelType) {
+			super(raster, pixelType);
+			pixels = new double[nBands][];
+			boolean isSigned8 = pixelType == PixelType.INT8 && raster.getDataBuffer().getDataType() == DataBuffer.TYPE_BYTE;
+			boolean isUnsigned32 = pixelType == PixelType.UINT32;
+			for (int b = 0; b < nBands; b++) {
+				if (pixelType == PixelType.FLOAT64) {
+					pixels[b] = raster.getSamples(0, 0, width, height, b, (double[]) null);
+				} else {
+					int[] samples = raster.getSamples(0, 0, width, height, b, (int[]) null);
+					var band = new double[samples.length];
+					for (int i = 0; i < samples.length; i++)
+						band[i] = toValue(samples[i], isSigned8, isUnsigned32);
+					pixels[b] = band;
+				}
+			}
+		}
+
+		@Override
+		void bilinearBatch(int b, int n, double[] values) {
+			double[] p = pixels[b];
+			for (int i = 0; i < n; i++) {
+				int index = batchIndex[i];
+				double ka = batchKa[i];
+				double pA = p[index] + ka*(p[index + 1] - p[index]);
+				double pB = p[index + width] + ka*(p[index + width + 1] - p[index + width]);
+				values[batchTarget[i]] = pA + batchKb[i]*(pB - pA);
+			}
+		}
+
+		@Override
+		double convolve(int b, int index, float[] wx, int nx, float[] wy, int ny) {
+			return InterpolationHelper.convolve(pixels[b], index, width, wx, nx, wy, ny);
+		}
+
+	}
+
+}
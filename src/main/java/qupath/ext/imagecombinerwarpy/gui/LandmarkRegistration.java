@@ -0,0 +1,240 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+import qupath.ext.imagecombinerwarpy.realtransform.InvertibleWrapped2DTransformAs3D;
+import qupath.ext.imagecombinerwarpy.realtransform.RealTransformSerializer;
+import qupath.lib.geom.Point2;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Landmark-based registration from point annotations, producing an affine transform and a thin-plate spline
+ * transform usable by Warpy and {@link RealTransformImageServer}.
+ * <p>
+ * Landmarks are matched between the base and the overlay by the name of their annotation, or by its classification
+ * for unnamed annotations; points of matching annotations are paired in order.
+ * If no annotation can be matched this way, all the points of both images are paired in order.
+ * <p>
+ * Fitting is a direct solve on the landmarks (no image is read), so refitting after editing landmarks is immediate.
+ * All coordinates are full resolution pixels, and transforms map base coordinates to overlay coordinates.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class LandmarkRegistration {
+
+	private static final Logger logger = LoggerFactory.getLogger(LandmarkRegistration.class);
+
+	/**
+	 * Minimum number of landmarks for a thin-plate spline.
+	 */
+	static final int MIN_SPLINE_LANDMARKS = 3;
+
+	/**
+	 * Pairs of matching points.
+	 * @param base coordinates in the base image, indexed by [dimension][landmark]
+	 * @param overlay coordinates in the overlay, indexed by [dimension][landmark]
+	 */
+	record Landmarks(double[][] base, double[][] overlay) {
+
+		int size() {
+			return base[0].length;
+		}
+	}
+
+	private LandmarkRegistration() {
+		// Static methods only
+	}
+
+	/**
+	 * Match the point annotations of two images.
+	 * @param annotationsBase annotations of the base image
+	 * @param annotationsOverlay annotations of the overlay
+	 * @return the matched landmarks
+	 * @throws IllegalArgumentException if the points cannot be matched
+	 */
+	static Landmarks matchLandmarks(Collection<PathObject> annotationsBase, Collection<PathObject> annotationsOverlay) {
+		Map<String, List<Point2>> pointsBase = getPointsByKey(annotationsBase);
+		Map<String, List<Point2>> pointsOverlay = getPointsByKey(annotationsOverlay);
+
+		List<Point2> matchedBase = new ArrayList<>();
+		List<Point2> matchedOverlay = new ArrayList<>();
+		for (var entry : pointsBase.entrySet()) {
+			String key = entry.getKey();
+			var overlay = pointsOverlay.get(key);
+			if (key == null || overlay == null)
+				continue;
+			if (overlay.size() != entry.getValue().size()) {
+				logger.warn("Landmarks '{}' have different numbers of points ({} & {}) - skipped", key, entry.getValue().size(), overlay.size());
+				continue;
+			}
+			matchedBase.addAll(entry.getValue());
+			matchedOverlay.addAll(overlay);
+		}
+
+		if (matchedBase.isEmpty()) {
+			// No names or classes in common: pair all the points in order
+			for (var points : pointsBase.values())
+				matchedBase.addAll(points);
+			for (var points : pointsOverlay.values())
+				matchedOverlay.addAll(points);
+			if (matchedBase.isEmpty() && matchedOverlay.isEmpty())
+				throw new IllegalArgumentException("No points found for either image!");
+			if (matchedBase.size() != matchedOverlay.size())
+				throw new IllegalArgumentException("Images have different numbers of annotated points (" + matchedBase.size() + " & " + matchedOverlay.size() + ")");
+		}
+
+		int n = matchedBase.size();
+		double[][] base = new double[2][n];
+		double[][] overlay = new double[2][n];
+		for (int i = 0; i < n; i++) {
+			base[0][i] = matchedBase.get(i).getX();
+			base[1][i] = matchedBase.get(i).getY();
+			overlay[0][i] = matchedOverlay.get(i).getX();
+			overlay[1][i] = matchedOverlay.get(i).getY();
+		}
+		return new Landmarks(base, overlay);
+	}
+
+	// Points of point annotations, grouped by annotation name or classification (null key if neither is set)
+	private static Map<String, List<Point2>> getPointsByKey(Collection<PathObject> annotations) {
+		Map<String, List<Point2>> map = new LinkedHashMap<>();
+		for (var annotation : annotations) {
+			var roi = annotation.getROI();
+			if (roi == null || roi.isArea())
+				continue;
+			String key = annotation.getName();
+			if (key == null && annotation.getPathClass() != null)
+				key = annotation.getPathClass().toString();
+			map.computeIfAbsent(key, k -> new ArrayList<>()).addAll(roi.getAllPoints());
+		}
+		return map;
+	}
+
+	/**
+	 * Least squares fit of an affine or rigid transform.
+	 * @param landmarks the landmarks
+	 * @param rigid true to fit a rotation and a translation only
+	 * @return the transform from base to overlay coordinates, as {mxx, mxy, tx, myx, myy, ty}
+	 * @throws IllegalArgumentException if there are too few landmarks, or if they are degenerate
+	 */
+	static double[] fitAffine(Landmarks landmarks, boolean rigid) {
+		int n = landmarks.size();
+		if (n < (rigid ? 2 : 3))
+			throw new IllegalArgumentException("At least " + (rigid ? 2 : 3) + " landmarks are needed, but only " + n + " found");
+		double[] px = landmarks.base()[0], py = landmarks.base()[1];
+		double[] qx = landmarks.overlay()[0], qy = landmarks.overlay()[1];
+
+		double pxMean = mean(px), pyMean = mean(py), qxMean = mean(qx), qyMean = mean(qy);
+		double sxx = 0, sxy = 0, syy = 0;
+		double a = 0, b = 0;
+		double uxx = 0, uxy = 0, uyx = 0, uyy = 0;
+		for (int i = 0; i < n; i++) {
+			double x = px[i] - pxMean, y = py[i] - pyMean;
+			double u = qx[i] - qxMean, v = qy[i] - qyMean;
+			sxx += x * x;
+			sxy += x * y;
+			syy += y * y;
+			a += x * u + y * v;
+			b += x * v - y * u;
+			uxx += u * x;
+			uxy += u * y;
+			uyx += v * x;
+			uyy += v * y;
+		}
+
+		double mxx, mxy, myx, myy;
+		if (rigid) {
+			double theta = Math.atan2(b, a);
+			mxx = Math.cos(theta);
+			mxy = -Math.sin(theta);
+			myx = Math.sin(theta);
+			myy = Math.cos(theta);
+		} else {
+			// Normal equations on centered coordinates: M * S = U, with S = [sxx sxy; sxy syy]
+			double det = sxx * syy - sxy * sxy;
+			if (Math.abs(det) < 1e-12 * Math.max(1, sxx * syy))
+				throw new IllegalArgumentException("Landmarks are collinear - an affine transform cannot be estimated");
+			mxx = (uxx * syy - uxy * sxy) / det;
+			mxy = (uxy * sxx - uxx * sxy) / det;
+			myx = (uyx * syy - uyy * sxy) / det;
+			myy = (uyy * sxx - uyx * sxy) / det;
+		}
+		double tx = qxMean - mxx * pxMean - mxy * pyMean;
+		double ty = qyMean - myx * pxMean - myy * pyMean;
+		double[] affine = {mxx, mxy, tx, myx, myy, ty};
+		logger.info("Landmark {} fit: RMS error {} pixels for {} landmarks", rigid ? "rigid" : "affine", getRmsError(landmarks, affine), n);
+		return affine;
+	}
+
+	/**
+	 * Get the root mean square distance between the transformed base landmarks and the overlay landmarks.
+	 */
+	static double getRmsError(Landmarks landmarks, double[] affine) {
+		double sum = 0;
+		int n = landmarks.size();
+		for (int i = 0; i < n; i++) {
+			double x = landmarks.base()[0][i], y = landmarks.base()[1][i];
+			double dx = affine[0] * x + affine[1] * y + affine[2] - landmarks.overlay()[0][i];
+			double dy = affine[3] * x + affine[4] * y + affine[5] - landmarks.overlay()[1][i];
+			sum += dx * dx + dy * dy;
+		}
+		return Math.sqrt(sum / n);
+	}
+
+	/**
+	 * Fit a thin-plate spline (which includes an affine component) interpolating the landmarks.
+	 * @param landmarks the landmarks, at least {@link #MIN_SPLINE_LANDMARKS}
+	 * @return an invertible 3D transform from base to overlay coordinates, in the form written by Warpy
+	 */
+	static InvertibleRealTransform fitThinPlateSpline(Landmarks landmarks) {
+		if (landmarks.size() < MIN_SPLINE_LANDMARKS)
+			throw new IllegalArgumentException("At least " + MIN_SPLINE_LANDMARKS + " landmarks are needed for a spline, but only " + landmarks.size() + " found");
+		var tps = new ThinplateSplineTransform(landmarks.base(), landmarks.overlay());
+		var invertible = new WrappedIterativeInvertibleRealTransform<>(tps);
+		// Same settings as when deserialized
+		invertible.getOptimzer().setTolerance(0.000001);
+		invertible.getOptimzer().setMaxIters(1000);
+		return new InvertibleWrapped2DTransformAs3D(invertible);
+	}
+
+	/**
+	 * Write a transform as a Warpy transform file in the directory of the overlay entry.
+	 * @param transform transform from base to overlay coordinates
+	 * @param entryOverlay the overlay entry
+	 * @param entryBase the base entry
+	 * @return the written file
+	 * @throws IOException
+	 */
+	static Path writeWarpyTransform(RealTransform transform, ProjectImageEntry<?> entryOverlay, ProjectImageEntry<?> entryBase) throws IOException {
+		Path path = entryOverlay.getEntryPath().resolve("transform_" + entryOverlay.getID() + "_" + entryBase.getID() + ".json");
+		String json = RealTransformSerializer.getRealTransformAdapter().toJson(transform, RealTransform.class);
+		Files.createDirectories(path.getParent());
+		Files.writeString(path, json, StandardCharsets.UTF_8);
+		logger.info("Warpy transform written to {}", path);
+		return path;
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double v : values)
+			sum += v;
+		return sum / values.length;
+	}
+
+}
@@ -0,0 +1,268 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.bytedeco.javacpp.indexer.DoubleIndexer;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.global.opencv_video;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.bytedeco.opencv.opencv_core.TermCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.imglib2.realtransform.InvertibleRealTransform;
+import qupath.lib.images.servers.ImageServer;
+
+/**
+ * Non-rigid refinement of a global affine alignment, from local translations estimated on a grid of tiles.
+ * <p>
+ * The overlay is first resampled onto the base with the global transform. A translation is then estimated
+ * independently for each tile with {@link opencv_video#findTransformECC} (in parallel), skipping tiles without texture.
+ * Shifts are regularized by comparing each one with the median of its 3x3 neighbourhood: shifts deviating by more
+ * than {@link #MAX_DEVIATION} pixels are replaced by the median, or discarded if there are too few neighbours.
+ * The centers of the remaining tiles and their matching overlay positions are used as landmarks of a thin-plate
+ * spline, which includes the global affine component.
+ * <p>
+ * The whole pipeline only needs image servers (see {@link #register(ImageServer, ImageServer, double[], double)}),
+ * so it can also run from scripts, without the user interface.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+public class LocalRegistration {
+
+	private static final Logger logger = LoggerFactory.getLogger(LocalRegistration.class);
+
+	/**
+	 * Size of the tiles, in pixels of the aligned images.
+	 */
+	public static final int TILE_SIZE = 128;
+
+	/**
+	 * Maximum local translation, relative to the tile size; larger shifts are considered failures.
+	 */
+	static final double MAX_SHIFT = 0.25;
+
+	/**
+	 * Maximum deviation of a shift from the median of its neighbourhood, in pixels of the aligned images.
+	 */
+	static final double MAX_DEVIATION = 3.0;
+
+	/**
+	 * Minimum standard deviation of a tile, relative to the standard deviation of the whole base image.
+	 */
+	static final double MIN_RELATIVE_STD = 0.25;
+
+	/**
+	 * Minimum ECC correlation coefficient for a tile shift to be used.
+	 */
+	static final double MIN_CORRELATION = 0.5;
+
+	private LocalRegistration() {
+		// Static methods only
+	}
+
+	/**
+	 * Estimate a non-rigid transform between two images, starting from a global affine transform.
+	 * Images are read without display settings.
+	 * @param serverBase the base server
+	 * @param serverOverlay the overlay server
+	 * @param affine the global transform from base to overlay full resolution pixels, as {mxx, mxy, tx, myx, myy, ty}
+	 * @param downsample the downsample at which the images are compared
+	 * @return the transform from base to overlay full resolution pixels, serializable with
+	 *         {@link qupath.ext.imagecombinerwarpy.realtransform.RealTransformSerializer}
+	 * @throws IOException if the images cannot be read
+	 * @throws IllegalArgumentException if too few tiles can be registered
+	 */
+	public static InvertibleRealTransform register(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay, double[] affine, double downsample) throws IOException {
+		Mat matBase = AlignmentImageLoader.readGrayscale(serverBase, downsample, null);
+		Mat matOverlay = null;
+		try {
+			matOverlay = AlignmentImageLoader.readGrayscale(serverOverlay, downsample, null);
+			matBase.convertTo(matBase, opencv_core.CV_32F);
+			matOverlay.convertTo(matOverlay, opencv_core.CV_32F);
+			var landmarks = estimateLandmarks(matBase, matOverlay, affine, downsample);
+			return LandmarkRegistration.fitThinPlateSpline(landmarks);
+		} finally {
+			matBase.release();
+			if (matOverlay != null)
+				matOverlay.release();
+		}
+	}
+
+	/**
+	 * Estimate landmarks from local translations.
+	 * @param matBase the base image (single channel, 32-bit float)
+	 * @param matOverlay the overlay image, of the same type and at the same downsample
+	 * @param affine the global transform from base to overlay full resolution pixels, as {mxx, mxy, tx, myx, myy, ty}
+	 * @param downsample the downsample of the images
+	 * @return landmarks in full resolution pixels
+	 * @throws IllegalArgumentException if too few tiles can be registered
+	 */
+	static LandmarkRegistration.Landmarks estimateLandmarks(Mat matBase, Mat matOverlay, double[] affine, double downsample) {
+		// Global transform in pixels of the images
+		double[] m = {affine[0], affine[1], affine[2] / downsample, affine[3], affine[4], affine[5] / downsample};
+
+		// Overlay resampled onto the base: warped(p) = overlay(M p)
+		Mat matTransform = new Mat(2, 3, opencv_core.CV_64F);
+		try (DoubleIndexer indexer = matTransform.createIndexer()) {
+			for (int i = 0; i < 6; i++)
+				indexer.put(i / 3, i % 3, m[i]);
+		}
+		Mat matWarped = new Mat();
+		try (Size size = matBase.size()) {
+			opencv_imgproc.warpAffine(matOverlay, matWarped, matTransform, size, opencv_imgproc.INTER_LINEAR | opencv_imgproc.WARP_INVERSE_MAP, opencv_core.BORDER_CONSTANT, null);
+		} finally {
+			matTransform.release();
+		}
+
+		int nx = matBase.cols() / TILE_SIZE;
+		int ny = matBase.rows() / TILE_SIZE;
+		double[] shiftX = new double[nx * ny];
+		double[] shiftY = new double[nx * ny];
+		boolean[] valid = new boolean[nx * ny];
+		try {
+			double minStd = MIN_RELATIVE_STD * getStd(matBase);
+			IntStream.range(0, nx * ny).parallel().forEach(i -> {
+				double[] shift = estimateShift(matBase, matWarped, (i % nx) * TILE_SIZE, (i / nx) * TILE_SIZE, minStd);
+				if (shift != null) {
+					shiftX[i] = shift[0];
+					shiftY[i] = shift[1];
+					valid[i] = true;
+				}
+			});
+		} finally {
+			matWarped.release();
+		}
+		regularize(shiftX, shiftY, valid, nx, ny);
+
+		List<double[]> points = new ArrayList<>();
+		for (int i = 0; i < nx * ny; i++) {
+			if (!valid[i])
+				continue;
+			double x = (i % nx + 0.5) * TILE_SIZE;
+			double y = (i / nx + 0.5) * TILE_SIZE;
+			double wx = x + shiftX[i];
+			double wy = y + shiftY[i];
+			points.add(new double[] {
+					x * downsample, y * downsample,
+					(m[0] * wx + m[1] * wy + m[2]) * downsample,
+					(m[3] * wx + m[4] * wy + m[5]) * downsample});
+		}
+		if (points.size() < LandmarkRegistration.MIN_SPLINE_LANDMARKS)
+			throw new IllegalArgumentException("Only " + points.size() + " of " + (nx * ny) + " tiles could be registered - try a smaller pixel size");
+		logger.info("Local registration: {} of {} tiles registered", points.size(), nx * ny);
+
+		int n = points.size();
+		double[][] base = new double[2][n];
+		double[][] overlay = new double[2][n];
+		for (int i = 0; i < n; i++) {
+			double[] p = points.get(i);
+			base[0][i] = p[0];
+			base[1][i] = p[1];
+			overlay[0][i] = p[2];
+			overlay[1][i] = p[3];
+		}
+		return new LandmarkRegistration.Landmarks(base, overlay);
+	}
+
+	/**
+	 * Estimate the translation of a tile, from the base to the warped overlay.
+	 * @return the shift, or null if the tile has no texture or if the estimation failed
+	 */
+	private static double[] estimateShift(Mat matBase, Mat matWarped, int x, int y, double minStd) {
+		try (Rect rect = new Rect(x, y, TILE_SIZE, TILE_SIZE);
+				Mat tileBase = new Mat(matBase, rect);
+				Mat tileWarped = new Mat(matWarped, rect)) {
+			if (getStd(tileBase) < minStd || getStd(tileWarped) < minStd)
+				return null;
+			Mat matShift = Mat.eye(2, 3, opencv_core.CV_32F).asMat();
+			try (var termCrit = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 50, 1e-4)) {
+				double correlation = opencv_video.findTransformECC(tileBase, tileWarped, matShift, opencv_video.MOTION_TRANSLATION, termCrit, null);
+				if (correlation < MIN_CORRELATION)
+					return null;
+				double dx, dy;
+				try (FloatIndexer indexer = matShift.createIndexer()) {
+					dx = indexer.get(0, 2);
+					dy = indexer.get(1, 2);
+				}
+				if (Math.abs(dx) > MAX_SHIFT * TILE_SIZE || Math.abs(dy) > MAX_SHIFT * TILE_SIZE)
+					return null;
+				return new double[] {dx, dy};
+			} catch (RuntimeException e) {
+				logger.trace("Unable to register tile at {}, {}", x, y, e);
+				return null;
+			} finally {
+				matShift.release();
+			}
+		}
+	}
+
+	/**
+	 * Replace shifts deviating from the median of their 3x3 neighbourhood by the median,
+	 * or discard them if fewer than 3 neighbours are valid.
+	 */
+	private static void regularize(double[] shiftX, double[] shiftY, boolean[] valid, int nx, int ny) {
+		double[] medianX = new double[shiftX.length];
+		double[] medianY = new double[shiftY.length];
+		boolean[] hasMedian = new boolean[valid.length];
+		double[] bufferX = new double[9];
+		double[] bufferY = new double[9];
+		for (int ty = 0; ty < ny; ty++) {
+			for (int tx = 0; tx < nx; tx++) {
+				int n = 0;
+				for (int j = Math.max(0, ty - 1); j <= Math.min(ny - 1, ty + 1); j++) {
+					for (int i = Math.max(0, tx - 1); i <= Math.min(nx - 1, tx + 1); i++) {
+						if (valid[j * nx + i]) {
+							bufferX[n] = shiftX[j * nx + i];
+							bufferY[n] = shiftY[j * nx + i];
+							n++;
+						}
+					}
+				}
+				if (n >= 3) {
+					medianX[ty * nx + tx] = median(bufferX, n);
+					medianY[ty * nx + tx] = median(bufferY, n);
+					hasMedian[ty * nx + tx] = true;
+				}
+			}
+		}
+		int nReplaced = 0;
+		for (int i = 0; i < valid.length; i++) {
+			if (!valid[i])
+				continue;
+			if (!hasMedian[i]) {
+				valid[i] = false;
+			} else if (Math.hypot(shiftX[i] - medianX[i], shiftY[i] - medianY[i]) > MAX_DEVIATION) {
+				shiftX[i] = medianX[i];
+				shiftY[i] = medianY[i];
+				nReplaced++;
+			}
+		}
+		logger.debug("Local registration: {} outlier shifts replaced by their neighbourhood median", nReplaced);
+	}
+
+	private static double median(double[] values, int n) {
+		double[] sorted = Arrays.copyOf(values, n);
+		Arrays.sort(sorted);
+		return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+	}
+
+	private static double getStd(Mat mat) {
+		try (Mat mean = new Mat(); Mat std = new Mat()) {
+			opencv_core.meanStdDev(mat, mean, std);
+			try (DoubleIndexer indexer = std.createIndexer()) {
+				return indexer.get(0);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,271 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.global.opencv_video;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_core.Point2f;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * FFT-based initialization of intensity-based alignment, see {@link PyramidEccAligner}.
+ * <p>
+ * ECC only converges from an initial transform close to the solution, while phase correlation finds large
+ * translations directly. Rotation and scale are estimated first (unless the motion is a translation), by phase
+ * correlation of the log-polar magnitude spectra of both images, which are invariant to translation.
+ * Since the spectrum is symmetric, this gives several candidates (rotation &plusmn;&theta; or &plusmn;&theta; + 180&deg;,
+ * scale s or 1/s); the translation of each one is found by phase correlation, and the candidate with the highest
+ * normalized cross-correlation is kept, but only if it is better than the initial transform, so that an overlay
+ * positioned by hand is left as it is.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class PhaseCorrelation {
+
+	private static final Logger logger = LoggerFactory.getLogger(PhaseCorrelation.class);
+
+	/**
+	 * Maximum size (width or height) of the images on which the initial transform is estimated, in pixels.
+	 */
+	static final int MAX_SIZE = 512;
+
+	/**
+	 * Range of scales accepted from the log-polar estimate; scales outside [1/MAX_SCALE, MAX_SCALE] are ignored.
+	 */
+	static final double MAX_SCALE = 2.0;
+
+	private PhaseCorrelation() {
+		// Static methods only
+	}
+
+	/**
+	 * Replace an initial transform by the phase correlation estimate, if the latter matches the images better.
+	 * @param matBase the template image (single channel)
+	 * @param matOverlay the input image (single channel)
+	 * @param matTransform 2x3 CV_32F warp matrix mapping base to overlay pixel coordinates, updated if a better transform is found
+	 * @param motion the motion type (e.g. {@link opencv_video#MOTION_AFFINE})
+	 * @return true if the transform was replaced
+	 */
+	static boolean initialize(Mat matBase, Mat matOverlay, Mat matTransform, int motion) {
+		Mat base = new Mat();
+		Mat overlay = new Mat();
+		Mat window = new Mat();
+		try {
+			matBase.convertTo(base, opencv_core.CV_32F);
+			matOverlay.convertTo(overlay, opencv_core.CV_32F);
+			try (Size size = base.size()) {
+				opencv_imgproc.createHanningWindow(window, size, opencv_core.CV_32F);
+			}
+
+			double[] current = getAffine(matTransform);
+			double scoreCurrent = getScore(base, overlay, current);
+			double[] best = null;
+			double scoreBest = scoreCurrent;
+			for (double[] linear : getLinearCandidates(base, overlay, motion)) {
+				for (double[] affine : getTranslationCandidates(base, overlay, window, linear)) {
+					double score = getScore(base, overlay, affine);
+					if (score > scoreBest) {
+						scoreBest = score;
+						best = affine;
+					}
+				}
+			}
+			if (best == null) {
+				logger.debug("Phase correlation: initial transform kept (correlation {})", scoreCurrent);
+				return false;
+			}
+			logger.debug("Phase correlation: correlation {} -> {}", scoreCurrent, scoreBest);
+			try (FloatIndexer indexer = matTransform.createIndexer()) {
+				for (int i = 0; i < 6; i++)
+					indexer.put(i / 3, i % 3, (float) best[i]);
+			}
+			return true;
+		} finally {
+			base.release();
+			overlay.release();
+			window.release();
+		}
+	}
+
+	/**
+	 * Candidate linear parts {mxx, mxy, myx, myy}: the identity, and the rotations and scales from the log-polar spectra.
+	 */
+	private static List<double[]> getLinearCandidates(Mat base, Mat overlay, int motion) {
+		List<double[]> candidates = new ArrayList<>();
+		candidates.add(new double[] {1, 0, 0, 1});
+		if (motion == opencv_video.MOTION_TRANSLATION)
+			return candidates;
+
+		// Spectra of the central squares of the base and of the overlay, centered on the base
+		int side = Math.min(base.cols(), base.rows()) / 2 * 2;
+		if (side < 16)
+			return candidates;
+		Mat centered = warp(overlay, base, centerTranslation(base, overlay, new double[] {1, 0, 0, 1}));
+		Mat polarBase = null, polarOverlay = null;
+		try (Rect rect = new Rect((base.cols() - side) / 2, (base.rows() - side) / 2, side, side);
+				Mat squareBase = new Mat(base, rect);
+				Mat squareOverlay = new Mat(centered, rect)) {
+			polarBase = getLogPolarSpectrum(squareBase);
+			polarOverlay = getLogPolarSpectrum(squareOverlay);
+			var shift = opencv_imgproc.phaseCorrelate(polarBase, polarOverlay);
+			double theta = shift.y() * 2 * Math.PI / side;
+			double scale = Math.exp(shift.x() * Math.log(side / 2.0) / side);
+			shift.close();
+			if (motion != opencv_video.MOTION_AFFINE && motion != opencv_video.MOTION_HOMOGRAPHY
+					|| scale > MAX_SCALE || scale < 1 / MAX_SCALE)
+				scale = 1;
+			logger.debug("Phase correlation: rotation {} degrees, scale {}", Math.toDegrees(theta), scale);
+			for (double t : new double[] {theta, -theta, theta + Math.PI, -theta + Math.PI}) {
+				for (double s : scale == 1 ? new double[] {1} : new double[] {scale, 1 / scale})
+					candidates.add(new double[] {s * Math.cos(t), -s * Math.sin(t), s * Math.sin(t), s * Math.cos(t)});
+			}
+		} finally {
+			centered.release();
+			if (polarBase != null)
+				polarBase.release();
+			if (polarOverlay != null)
+				polarOverlay.release();
+		}
+		return candidates;
+	}
+
+	/**
+	 * Complete a linear part with the translation found by phase correlation, with both signs.
+	 * @return transforms as {mxx, mxy, tx, myx, myy, ty}
+	 */
+	private static List<double[]> getTranslationCandidates(Mat base, Mat overlay, Mat window, double[] linear) {
+		double[] affine = centerTranslation(base, overlay, linear);
+		Mat warped = warp(overlay, base, affine);
+		try {
+			// Warped image shifted by d matches the base, i.e. base x corresponds to overlay A(x + d) + t
+			var shift = opencv_imgproc.phaseCorrelate(base, warped, window, (double[]) null);
+			double dx = shift.x(), dy = shift.y();
+			shift.close();
+			List<double[]> candidates = new ArrayList<>();
+			for (int sign : new int[] {1, -1}) {
+				candidates.add(new double[] {
+						affine[0], affine[1], affine[2] + sign * (affine[0] * dx + affine[1] * dy),
+						affine[3], affine[4], affine[5] + sign * (affine[3] * dx + affine[4] * dy)});
+			}
+			return candidates;
+		} finally {
+			warped.release();
+		}
+	}
+
+	/**
+	 * Transform with the given linear part {mxx, mxy, myx, myy} mapping the center of the base to the center of the overlay.
+	 */
+	private static double[] centerTranslation(Mat base, Mat overlay, double[] linear) {
+		double cxBase = base.cols() / 2.0, cyBase = base.rows() / 2.0;
+		double cxOverlay = overlay.cols() / 2.0, cyOverlay = overlay.rows() / 2.0;
+		return new double[] {
+				linear[0], linear[1], cxOverlay - linear[0] * cxBase - linear[1] * cyBase,
+				linear[2], linear[3], cyOverlay - linear[2] * cxBase - linear[3] * cyBase};
+	}
+
+	/**
+	 * Normalized cross-correlation between the base and the overlay warped onto it.
+	 */
+	private static double getScore(Mat base, Mat overlay, double[] affine) {
+		Mat warped = warp(overlay, base, affine);
+		Mat result = new Mat();
+		try {
+			opencv_imgproc.matchTemplate(base, warped, result, opencv_imgproc.TM_CCOEFF_NORMED);
+			try (FloatIndexer indexer = result.createIndexer()) {
+				float score = indexer.get(0, 0);
+				return Float.isFinite(score) ? score : Double.NEGATIVE_INFINITY;
+			}
+		} finally {
+			warped.release();
+			result.release();
+		}
+	}
+
+	/**
+	 * Resample an image onto the pixels of a template, with a transform from template to image coordinates.
+	 */
+	private static Mat warp(Mat mat, Mat template, double[] affine) {
+		Mat matTransform = new Mat(2, 3, opencv_core.CV_32F);
+		try (FloatIndexer indexer = matTransform.createIndexer()) {
+			for (int i = 0; i < 6; i++)
+				indexer.put(i / 3, i % 3, (float) affine[i]);
+		}
+		Mat warped = new Mat();
+		try (Size size = template.size()) {
+			opencv_imgproc.warpAffine(mat, warped, matTransform, size, opencv_imgproc.INTER_LINEAR | opencv_imgproc.WARP_INVERSE_MAP, opencv_core.BORDER_CONSTANT, null);
+		} finally {
+			matTransform.release();
+		}
+		return warped;
+	}
+
+	/**
+	 * Log-polar transform of the centered log magnitude spectrum of a square image with an even size.
+	 * Rows are angles (the full circle), columns are log radii.
+	 */
+	private static Mat getLogPolarSpectrum(Mat square) {
+		int side = square.cols();
+		Mat windowed = new Mat();
+		Mat spectrum = new Mat();
+		Mat magnitude = new Mat();
+		try (Size size = square.size(); MatVector planes = new MatVector()) {
+			opencv_imgproc.createHanningWindow(windowed, size, opencv_core.CV_32F);
+			opencv_core.multiply(square, windowed, windowed);
+			opencv_core.dft(windowed, spectrum, opencv_core.DFT_COMPLEX_OUTPUT, 0);
+			opencv_core.split(spectrum, planes);
+			opencv_core.magnitude(planes.get(0), planes.get(1), magnitude);
+			magnitude.convertTo(magnitude, -1, 1.0, 1.0);
+			opencv_core.log(magnitude, magnitude);
+			shiftQuadrants(magnitude);
+
+			Mat polar = new Mat();
+			try (Point2f center = new Point2f(side / 2f, side / 2f)) {
+				opencv_imgproc.warpPolar(magnitude, polar, size, center, side / 2.0,
+						opencv_imgproc.INTER_LINEAR | opencv_imgproc.WARP_FILL_OUTLIERS | opencv_imgproc.WARP_POLAR_LOG);
+			}
+			return polar;
+		} finally {
+			windowed.release();
+			spectrum.release();
+			magnitude.release();
+		}
+	}
+
+	/**
+	 * Swap the quadrants of a spectrum with even dimensions, so that the zero frequency is at the center.
+	 */
+	private static void shiftQuadrants(Mat mat) {
+		int cx = mat.cols() / 2, cy = mat.rows() / 2;
+		try (Rect r0 = new Rect(0, 0, cx, cy); Rect r1 = new Rect(cx, 0, cx, cy);
+				Rect r2 = new Rect(0, cy, cx, cy); Rect r3 = new Rect(cx, cy, cx, cy);
+				Mat q0 = new Mat(mat, r0); Mat q1 = new Mat(mat, r1);
+				Mat q2 = new Mat(mat, r2); Mat q3 = new Mat(mat, r3);
+				Mat tmp = new Mat()) {
+			q0.copyTo(tmp);
+			q3.copyTo(q0);
+			tmp.copyTo(q3);
+			q1.copyTo(tmp);
+			q2.copyTo(q1);
+			tmp.copyTo(q2);
+		}
+	}
+
+	private static double[] getAffine(Mat matTransform) {
+		double[] affine = new double[6];
+		try (FloatIndexer indexer = matTransform.createIndexer()) {
+			for (int i = 0; i < 6; i++)
+				affine[i] = indexer.get(i / 3, i % 3);
+		}
+		return affine;
+	}
+
+}
@@ -0,0 +1,246 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.global.opencv_video;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.TermCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coarse-to-fine intensity-based alignment with {@link opencv_video#findTransformECC}.
+ * <p>
+ * Both images are reduced with {@link opencv_imgproc#pyrDown} until they are about {@link #MIN_LEVEL_SIZE} pixels.
+ * The transform is first estimated on the coarsest level, where iterations are cheap and the capture range is large,
+ * then refined on each finer level, seeded with the previous estimate (whose translation is doubled).
+ * Each level stops as soon as the correlation coefficient improves by less than {@link #EPSILON},
+ * and finer levels allow fewer iterations, since they only have to correct sub-pixel errors of the coarser level.
+ * <p>
+ * Before ECC, the initial transform is checked against a phase correlation estimate (see {@link PhaseCorrelation})
+ * on a level of at most {@link PhaseCorrelation#MAX_SIZE} pixels, so that large translations and rotations
+ * do not need to be corrected by hand.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class PyramidEccAligner {
+
+	private static final Logger logger = LoggerFactory.getLogger(PyramidEccAligner.class);
+
+	/**
+	 * Minimum size (width or height) of the coarsest level, in pixels.
+	 */
+	static final int MIN_LEVEL_SIZE = 64;
+
+	/**
+	 * Maximum number of levels, including the full size images.
+	 */
+	static final int MAX_LEVELS = 6;
+
+	/**
+	 * Maximum number of iterations on the full size images; doubled at each coarser level.
+	 */
+	static final int FINEST_ITERATIONS = 25;
+
+	/**
+	 * Maximum number of iterations on any level.
+	 */
+	static final int MAX_ITERATIONS = 200;
+
+	/**
+	 * Convergence threshold on the increment of the correlation coefficient.
+	 */
+	static final double EPSILON = 1e-4;
+
+	/**
+	 * Listener notified after each level, e.g. to report progress.
+	 * It is called from the aligning thread, and may throw a {@link java.util.concurrent.CancellationException} to stop the alignment.
+	 */
+	@FunctionalInterface
+	interface ProgressListener {
+
+		/**
+		 * @param nDone number of levels processed, from the coarsest
+		 * @param nLevels total number of levels
+		 * @param correlation correlation coefficient reached on the last level, or NaN if it did not converge
+		 */
+		void levelDone(int nDone, int nLevels, double correlation);
+	}
+
+	private PyramidEccAligner() {
+		// Static methods only
+	}
+
+	/**
+	 * Estimate the transform between two images.
+	 * @param matBase the template image (8-bit or 32-bit float, single channel)
+	 * @param matOverlay the input image, of the same type
+	 * @param matTransform 2x3 CV_32F warp matrix mapping base to overlay pixel coordinates;
+	 *                     its content is used as initial estimate and updated with the result
+	 * @param motion the motion type (e.g. {@link opencv_video#MOTION_AFFINE})
+	 * @return the correlation coefficient reached on the finest level
+	 * @throws RuntimeException if the estimation does not converge on any level
+	 */
+	static double align(Mat matBase, Mat matOverlay, Mat matTransform, int motion) {
+		List<Mat> pyramidBase = buildPyramid(matBase);
+		try {
+			return align(pyramidBase, matOverlay, matTransform, motion);
+		} finally {
+			releasePyramid(pyramidBase);
+		}
+	}
+
+	/**
+	 * Estimate the transform between an image and a base image whose pyramid has already been built,
+	 * e.g. when several images are aligned to the same base. The base pyramid is only read, and may be
+	 * shared between threads.
+	 * @param pyramidBase the pyramid of the template image, see {@link #buildPyramid(Mat)}
+	 * @see #align(Mat, Mat, Mat, int)
+	 */
+	static double align(List<Mat> pyramidBase, Mat matOverlay, Mat matTransform, int motion) {
+		return align(pyramidBase, matOverlay, matTransform, motion, null);
+	}
+
+	/**
+	 * Estimate the transform between an image and a base image whose pyramid has already been built,
+	 * notifying a listener after each level.
+	 * @param listener the listener (may be null)
+	 * @see #align(List, Mat, Mat, int)
+	 */
+	static double align(List<Mat> pyramidBase, Mat matOverlay, Mat matTransform, int motion, ProgressListener listener) {
+		List<Mat> pyramidOverlay = buildPyramid(matOverlay);
+		int nLevels = Math.min(pyramidBase.size(), pyramidOverlay.size());
+		try {
+			if (matTransform.rows() == 2) {
+				int initLevel = getInitializationLevel(pyramidBase, nLevels);
+				scaleTranslation(matTransform, 1.0 / (1 << initLevel));
+				PhaseCorrelation.initialize(pyramidBase.get(initLevel), pyramidOverlay.get(initLevel), matTransform, motion);
+				scaleTranslation(matTransform, 1 << initLevel);
+			}
+			// Express the initial translation in pixels of the coarsest level
+			scaleTranslation(matTransform, 1.0 / (1 << (nLevels - 1)));
+			double result = Double.NaN;
+			RuntimeException lastException = null;
+			for (int level = nLevels - 1; level >= 0; level--) {
+				int maxIterations = Math.min(MAX_ITERATIONS, FINEST_ITERATIONS << level);
+				var termCrit = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, maxIterations, EPSILON);
+				Mat matEstimate = matTransform.clone();
+				try {
+					result = opencv_video.findTransformECC(pyramidBase.get(level), pyramidOverlay.get(level), matEstimate, motion, termCrit, null);
+					matEstimate.copyTo(matTransform);
+					lastException = null;
+					logger.debug("ECC level {} ({} x {}): correlation {}", level, pyramidBase.get(level).cols(), pyramidBase.get(level).rows(), result);
+				} catch (RuntimeException e) {
+					// Keep the previous estimate: a coarse level may not converge while a finer one does
+					logger.debug("ECC did not converge on level {}", level, e);
+					lastException = e;
+				} finally {
+					matEstimate.release();
+					termCrit.close();
+				}
+				if (level > 0)
+					scaleTranslation(matTransform, 2.0);
+				if (listener != null)
+					listener.levelDone(nLevels - level, nLevels, lastException == null ? result : Double.NaN);
+			}
+			if (lastException != null)
+				throw lastException;
+			return result;
+		} finally {
+			releasePyramid(pyramidOverlay);
+		}
+	}
+
+	/**
+	 * Estimate an affine transform in full resolution pixel coordinates.
+	 * @param pyramidBase the pyramid of the template image
+	 * @param matOverlay the input image
+	 * @param affine the initial transform, as {mxx, mxy, tx, myx, myy, ty} in full resolution pixels
+	 * @param downsample the downsample of both images
+	 * @param motion the motion type
+	 * @return the estimated transform, in the same form as the initial transform
+	 * @throws RuntimeException if the estimation does not converge
+	 */
+	static double[] alignAffine(List<Mat> pyramidBase, Mat matOverlay, double[] affine, double downsample, int motion) {
+		return alignAffine(pyramidBase, matOverlay, affine, downsample, motion, null);
+	}
+
+	/**
+	 * Estimate an affine transform in full resolution pixel coordinates, notifying a listener after each level.
+	 * @param listener the listener (may be null)
+	 * @see #alignAffine(List, Mat, double[], double, int)
+	 */
+	static double[] alignAffine(List<Mat> pyramidBase, Mat matOverlay, double[] affine, double downsample, int motion, ProgressListener listener) {
+		Mat matTransform = new Mat(2, 3, opencv_core.CV_32F);
+		try {
+			try (FloatIndexer indexer = matTransform.createIndexer()) {
+				for (int r = 0; r < 2; r++) {
+					indexer.put(r, 0, (float) affine[r * 3]);
+					indexer.put(r, 1, (float) affine[r * 3 + 1]);
+					indexer.put(r, 2, (float) (affine[r * 3 + 2] / downsample));
+				}
+			}
+			align(pyramidBase, matOverlay, matTransform, motion, listener);
+			double[] result = new double[6];
+			try (FloatIndexer indexer = matTransform.createIndexer()) {
+				for (int r = 0; r < 2; r++) {
+					result[r * 3] = indexer.get(r, 0);
+					result[r * 3 + 1] = indexer.get(r, 1);
+					result[r * 3 + 2] = indexer.get(r, 2) * downsample;
+				}
+			}
+			return result;
+		} finally {
+			matTransform.release();
+		}
+	}
+
+	/**
+	 * Build the pyramid of an image, from the image itself (level 0) to the coarsest level.
+	 * @see #releasePyramid(List)
+	 */
+	static List<Mat> buildPyramid(Mat mat) {
+		List<Mat> pyramid = new ArrayList<>();
+		pyramid.add(mat);
+		Mat current = mat;
+		while (pyramid.size() < MAX_LEVELS && Math.min(current.cols(), current.rows()) / 2 >= MIN_LEVEL_SIZE) {
+			Mat next = new Mat();
+			opencv_imgproc.pyrDown(current, next);
+			pyramid.add(next);
+			current = next;
+		}
+		return pyramid;
+	}
+
+	/**
+	 * Release the levels of a pyramid created by {@link #buildPyramid(Mat)}, except level 0 (the original image).
+	 */
+	static void releasePyramid(List<Mat> pyramid) {
+		for (int level = 1; level < pyramid.size(); level++)
+			pyramid.get(level).release();
+	}
+
+	/**
+	 * Finest level of at most {@link PhaseCorrelation#MAX_SIZE} pixels, or the coarsest level.
+	 */
+	private static int getInitializationLevel(List<Mat> pyramid, int nLevels) {
+		for (int level = 0; level < nLevels - 1; level++) {
+			Mat mat = pyramid.get(level);
+			if (Math.max(mat.cols(), mat.rows()) <= PhaseCorrelation.MAX_SIZE)
+				return level;
+		}
+		return nLevels - 1;
+	}
+
+	private static void scaleTranslation(Mat matTransform, double scale) {
+		try (FloatIndexer indexer = matTransform.createIndexer()) {
+			indexer.put(0, 2, (float) (indexer.get(0, 2) * scale));
+			indexer.put(1, 2, (float) (indexer.get(1, 2) * scale));
+		}
+	}
+
+}
@@ -54,7 +54,6 @@ import net.imglib2.realtransform.InvertibleRealTransform;
 import net.imglib2.realtransform.RealTransform;
 import qupath.lib.awt.common.AwtTools;
 import qupath.ext.imagecombinerwarpy.gui.InterpolationModes.InterpolationType;
-import qupath.lib.gui.dialogs.Dialogs;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
 import qupath.lib.images.servers.ImageServerMetadata;
@@ -70,7 +69,7 @@ import qupath.lib.regions.RegionRequest;
  * 
  *
  */
-public class RealTransformImageServer extends TransformingImageServer<BufferedImage> {
+public class RealTransformImageServer extends TransformingImageServer<BufferedImage> implements ChannelSelectiveServer {
 	
 	private static Logger logger = LoggerFactory.getLogger(RealTransformImageServer.class);
 	
@@ -86,6 +85,16 @@ public class RealTransformImageServer extends TransformingImageServer<BufferedIm
 	private double globalScale = 1.0;
 	private double[] dsLevels;
 
+	private final transient TileRequestCoalescer coalescer = new TileRequestCoalescer();
+
+	// Size (in target pixels) of the blocks classified before warping a tile
+	private static final int BLOCK_SIZE = CoordinateMap.BLOCK_SIZE;
+
+	// Block classification: fully outside the source, crossing its border, or fully inside
+	private static final byte BLOCK_OUTSIDE = 0;
+	private static final byte BLOCK_BOUNDARY = 1;
+	private static final byte BLOCK_INSIDE = 2;
+
 	// Fields for fast warping -> precomputes a transformation field, potentially downscaled
 	final boolean downSampleTransformationField; // Flag for transformation field pre-computation
 	final private int downscaleForTransformationComputation; // Downscaling of the transformation field, in pixel units of the current image server, only xy is supported
@@ -268,7 +277,9 @@ public class RealTransformImageServer extends TransformingImageServer<BufferedIm
 
 	@Override
 	protected String createID() {
-		return getClass().getName() + ": + " + getWrappedServer().getPath() + " " + "realtransform"; //GsonTools.getInstance().toJson(realtransform, realtransform.getClass()); 
+		// The content hash makes the ID depend on the transform and on the interpolation settings,
+		// so that differently warped servers over the same image never share cached tiles
+		return getClass().getName() + ": + " + getWrappedServer().getPath() + " " + "realtransform " + rtis.getContentHash();
 	}
 
 	private static double getBestDownsample(double[] dsLevels, double ds) {
@@ -364,8 +375,146 @@ public class RealTransformImageServer extends TransformingImageServer<BufferedIm
 		// out[2] = in[2]; transformation in Z is ignored
 	}
 	
+	/**
+	 * Map a target pixel to full resolution source coordinates.
+	 * @param transform transformation from target to source full resolution pixel coordinates
+	 * @param request the target request
+	 * @param x the target column, relative to the request and in downsampled pixels
+	 * @param y the target row, relative to the request and in downsampled pixels
+	 * @param dbl working array
+	 * @param out the source coordinates
+	 */
+	private void mapPoint(RealTransform transform, RegionRequest request, double x, double y, double[] dbl, double[] out) {
+		dbl[0] = x * request.getDownsample() + request.getX();
+		dbl[1] = y * request.getDownsample() + request.getY();
+
+		if (downSampleTransformationField) {
+			// Faster -> cache and interpolate transformation field
+			getTransformedCoordinates(transform, dbl, out);
+		} else {
+			// Full transformation computation
+			transform.apply(dbl, out);
+		}
+	}
+
+	/**
+	 * Map a target pixel directly, without storing it in the coordinate map of the tile.
+	 * Used for the few neighbours of computed pixels that belong to skipped blocks.
+	 * @param rowX array to store the x coordinate, in pixels of requestTR
+	 * @param rowY array to store the y coordinate, in pixels of requestTR
+	 */
+	private void mapPixel(RealTransform transform, RegionRequest request, int x, int y, RegionRequest requestTR, double[] dbl, double[] out, float[] rowX, float[] rowY) {
+		mapPoint(transform, request, x, y, dbl, out);
+		rowX[x] = (float) ((out[0] - requestTR.getX()) / requestTR.getDownsample());
+		rowY[x] = (float) ((out[1] - requestTR.getY()) / requestTR.getDownsample());
+	}
+
+	/**
+	 * Classify blocks of BLOCK_SIZE x BLOCK_SIZE target pixels from the mapped samples of the coordinate map.
+	 * A block is outside (or inside) if the bounding box of its mapped corners, edge midpoints and centre,
+	 * enlarged by a margin, is outside (or inside) the valid region [xMin, xMax) x [yMin, yMax) of the source.
+	 * The margin accounts for the non-linearity of the transform within the block: it grows with the extent of the block,
+	 * and with the deviation of the mapped midpoints from the midpoints of the mapped corners (a bound on the curvature
+	 * of the field between samples), so that folds or bulges of nonlinear fields do not drop pixels.
+	 * @param offsetX offset from the origin of the map to the origin of the source tile, in full resolution pixels
+	 * @param offsetY offset from the origin of the map to the origin of the source tile, in full resolution pixels
+	 * @param scale inverse of the downsample of the source tile
+	 * @return the block states, indexed by [by][bx]
+	 */
+	private static byte[][] classifyBlocks(CoordinateMap map, CoordinateMap.Mapper mapper, double offsetX, double offsetY, double scale,
+			double xMin, double xMax, double yMin, double yMax) {
+		int nbx = map.getNumBlocksX();
+		int nby = map.getNumBlocksY();
+		var samples = map.getSamples(mapper);
+		float[] sampleX = samples[0];
+		float[] sampleY = samples[1];
+		int stride = 2 * nbx + 1;
+		byte[][] states = new byte[nby][nbx];
+		for (int by = 0; by < nby; by++) {
+			for (int bx = 0; bx < nbx; bx++) {
+				// Bounding box of the 3 x 3 samples of the block
+				int i0 = 2 * by * stride + 2 * bx;
+				double x1 = Double.POSITIVE_INFINITY, x2 = Double.NEGATIVE_INFINITY;
+				double y1 = Double.POSITIVE_INFINITY, y2 = Double.NEGATIVE_INFINITY;
+				for (int j = 0; j < 3; j++) {
+					for (int i = 0; i < 3; i++) {
+						int ind = i0 + j * stride + i;
+						x1 = Math.min(x1, sampleX[ind]);
+						x2 = Math.max(x2, sampleX[ind]);
+						y1 = Math.min(y1, sampleY[ind]);
+						y2 = Math.max(y2, sampleY[ind]);
+					}
+				}
+				// Deviation of the edge midpoints and centre from the linear interpolation of the corners
+				int i00 = i0, i02 = i0 + 2, i20 = i0 + 2 * stride, i22 = i20 + 2;
+				double deviation = 0;
+				deviation = Math.max(deviation, getDeviation(sampleX, sampleY, i0 + 1, i00, i02));
+				deviation = Math.max(deviation, getDeviation(sampleX, sampleY, i20 + 1, i20, i22));
+				deviation = Math.max(deviation, getDeviation(sampleX, sampleY, i0 + stride, i00, i20));
+				deviation = Math.max(deviation, getDeviation(sampleX, sampleY, i0 + stride + 2, i02, i22));
+				deviation = Math.max(deviation, getDeviation(sampleX, sampleY, i0 + stride + 1, i00, i22));
+				deviation = Math.max(deviation, getDeviation(sampleX, sampleY, i0 + stride + 1, i02, i20));
+				x1 = (x1 + offsetX) * scale;
+				x2 = (x2 + offsetX) * scale;
+				y1 = (y1 + offsetY) * scale;
+				y2 = (y2 + offsetY) * scale;
+				// Between two samples, a smooth field deviates from its samples by less than twice their deviation from linearity
+				double margin = 0.5 * Math.max(x2 - x1, y2 - y1) + 2 * deviation * scale + 1;
+				if (Double.isNaN(margin))
+					states[by][bx] = BLOCK_BOUNDARY;
+				else if (x2 + margin < xMin || x1 - margin >= xMax || y2 + margin < yMin || y1 - margin >= yMax)
+					states[by][bx] = BLOCK_OUTSIDE;
+				else if (x1 - margin >= xMin && x2 + margin < xMax && y1 - margin >= yMin && y2 + margin < yMax)
+					states[by][bx] = BLOCK_INSIDE;
+				else
+					states[by][bx] = BLOCK_BOUNDARY;
+			}
+		}
+		return states;
+	}
+
+	// Distance between a mapped midpoint and the midpoint of the two mapped points around it
+	private static double getDeviation(float[] sampleX, float[] sampleY, int mid, int i1, int i2) {
+		double dx = sampleX[mid] - 0.5 * (sampleX[i1] + sampleX[i2]);
+		double dy = sampleY[mid] - 0.5 * (sampleY[i1] + sampleY[i2]);
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+	
 	@Override
 	public BufferedImage readRegion(RegionRequest request) throws IOException {
+		return readChannels(request, null);
+	}
+
+	@Override
+	public BufferedImage readChannels(RegionRequest request, int[] channelsRequested) throws IOException {
+		int[] channels = channelsRequested == null || ChannelViewImageServer.isAllChannels(channelsRequested, nChannels()) ? null : channelsRequested;
+		var metrics = WarpMetrics.getInstance();
+		metrics.tileRequested();
+		var cache = WarpedTileCache.getInstance();
+		// Channel subsets are cached separately from the full tiles
+		var key = request.updatePath(channels == null ? getPath() : getPath() + " channels " + Arrays.toString(channels));
+		BufferedImage img = cache.get(key);
+		if (img != null) {
+			metrics.cacheHit();
+			return img;
+		}
+		// Concurrent identical requests share a single computation
+		return coalescer.load(key, () -> {
+			BufferedImage imgWarped = cache.get(key);
+			if (imgWarped == null) {
+				imgWarped = metrics.warp(() -> warpRegion(request, channels));
+				cache.put(key, imgWarped);
+			}
+			return imgWarped;
+		});
+	}
+
+	/**
+	 * Warp a region.
+	 * @param request the region
+	 * @param channels the channels to warp, or null for all the channels
+	 */
+	private BufferedImage warpRegion(RegionRequest request, int[] channels) throws IOException {
 
 		RealTransform transform = realtransform.copy();
 
@@ -383,7 +532,12 @@ public class RealTransformImageServer extends TransformingImageServer<BufferedIm
 		int padFactor = 4;
 		
 		double scaledDownsample = downsample / globalScale;		
-		double downsampleTR = getBestDownsample(dsLevels, scaledDownsample);
+		double downsampleTR;
+		if (InterpolationModes.isAntiAliased(interpolationMode))
+			// The kernel filters the source: read the nearest level rather than a finer one
+			downsampleTR = InterpolationHelper.getNearestDownsample(dsLevels, scaledDownsample);
+		else
+			downsampleTR = getBestDownsample(dsLevels, scaledDownsample);
 		
 		// Pad slightly (With padFactor=4 black stripes are avoided  - especially for large rotations and when images are loaded with rotation)
 		int pad = (int) Math.ceil(downsampleTR * padFactor);
@@ -401,9 +555,12 @@ public class RealTransformImageServer extends TransformingImageServer<BufferedIm
 				);
 		
 		// Source
-		BufferedImage img = getWrappedServer().readRegion(requestTR);
+		BufferedImage img = wrappedServer.readRegion(requestTR);
 		if (img == null)
 			return img;
+		if (channels != null)
+			// Only the requested channels are resampled
+			img = ChannelViewImageServer.selectChannels(img, channels, getWrappedServer().getPixelType(), getMetadata().getChannels());
 
 		// Target
 		int w = (int)(request.getWidth() / downsample);
@@ -415,157 +572,175 @@ public class RealTransformImageServer extends TransformingImageServer<BufferedIm
 		int nBands = rasterTransform.getNumBands();
 		
 		Object elements = null;
-		double[] dbl = new double[3];
-		double[] dbl2 = new double[3];
 		
-		float ka, kb;
-		float p1, p2, p3, p4, pA, pB, pOut;
-		float[][] pixelsFloat = null;
-		int[][] pixelsInt = null;
+		InterpolationSamples samples = null;
+		double[][] rowValues = null;
 		int index;
 		int xx, yy;
 				
-		float cubicA = 1, cubicB = 0;  // InterpolationType.BICUBIC
-		if (interpolationMode != InterpolationType.CATMULLROM) {
-			cubicA = 0.5f; cubicB = 0;
-		}
-		if (interpolationMode != InterpolationType.MITCHELLNETRAVALI) {
-			cubicA = (float) (1/3.0); cubicB = cubicA;
-		}
-		if (interpolationMode != InterpolationType.CUBICBSPLINE) {
-			cubicA = 0; cubicB = 1;
+		// Tabulated kernel weights, computed once per pixel and shared across bands
+		var kernel = InterpolationHelper.getKernelTable(interpolationMode);
+		float[] wx = null, wy = null;
+		if (kernel != null) {
+			wx = new float[kernel.getTaps()];
+			wy = new float[kernel.getTaps()];
 		}
 			
-		boolean useCubicInterpolation = (interpolationMode == InterpolationType.BICUBIC) ||
-										(interpolationMode == InterpolationType.CATMULLROM) ||
-										(interpolationMode == InterpolationType.MITCHELLNETRAVALI) ||
-										(interpolationMode == InterpolationType.CUBICBSPLINE);
+		boolean useKernelInterpolation = kernel != null;
+		boolean useAreaAveraging = interpolationMode == InterpolationType.AREAAVERAGE;
+		
+		// Source coordinates of the current and previous target rows
+		// (the previous row gives the vertical derivatives of the mapping for area averaging)
+		float[] rowX = new float[w];
+		float[] rowY = new float[w];
+		float[] prevRowX = null, prevRowY = null;
+		int[] rangeX = null, rangeY = null;
+		if (useAreaAveraging) {
+			wx = new float[InterpolationHelper.MAX_AREA_TAPS];
+			wy = new float[InterpolationHelper.MAX_AREA_TAPS];
+			rangeX = new int[2];
+			rangeY = new int[2];
+			prevRowX = new float[w];
+			prevRowY = new float[w];
+		}
 						
 		int widthTransform = img.getWidth();
 		int heightTransform = img.getHeight();
 				
-		int type = img.getType();
-		
-		if (interpolationMode != InterpolationType.NEARESTNEIGHBOR && 
-				!(type == BufferedImage.TYPE_USHORT_GRAY || type == BufferedImage.TYPE_BYTE_GRAY ||
-						type == BufferedImage.TYPE_CUSTOM )) {		
-			Dialogs.showErrorNotification("AffineTransformInterpolationImageServer", "Current image type is only supported with NearestNeighbor interpolation!");
-			return null;
-		}
-				
-		boolean isNotFloatType = false;
+		// Samples of the source for interpolation, for any pixel type
+		// Interpolated values are collected per target row and written to the raster once the row is complete
 		if (interpolationMode != InterpolationType.NEARESTNEIGHBOR) {
-			if (type == BufferedImage.TYPE_USHORT_GRAY || type == BufferedImage.TYPE_BYTE_GRAY) {
-				isNotFloatType = true;
-				pixelsInt = new int[nBands][];
-				pixelsFloat = new float[nBands][];
-				for (int b=0; b<nBands; b++) {
-					pixelsInt[b] = rasterTransform.getSamples(0, 0, widthTransform, heightTransform, b, (int[]) null);
-					pixelsFloat[b] = InterpolationHelper.convertToFloatArray(pixelsInt[b],  null);
-				}
-			}
-			else {
-				pixelsFloat = new float[nBands][];
-				for (int b=0; b<nBands; b++) {
-					pixelsFloat[b] = rasterTransform.getSamples(0, 0, widthTransform, heightTransform, b, (float[])null);
-				}
-			}					
+			samples = InterpolationSamples.create(img, getWrappedServer().getPixelType(), interpolationMode);
+			rowValues = new double[nBands][w];
 		}
 	
 		int xB1 = 0, xB2 = 1;
 		int yB1 = 0, yB2 = 1;
 		
-		if ( useCubicInterpolation ) {
-			xB1 = 1; xB2 = 2;
-			yB1 = 1; yB2 = 2;
+		if ( useKernelInterpolation ) {
+			xB1 = -kernel.getOffset(); xB2 = kernel.getTaps() + kernel.getOffset() - 1;
+			yB1 = xB1; yB2 = xB2;
 		}
 
+		// Source coordinates of the target pixels, shared with the other servers using the same mapping
+		// (e.g. other channel subsets or stains of the same overlay), and computed only for the blocks that are needed
+		double[] mapIn = new double[3];
+		CoordinateMap.Mapper mapper = (x, y, out) -> mapPoint(transform, request, x, y, mapIn, out);
+		var coordinateMap = CoordinateMap.getInstance(rtis.getMappingHash(), this, request, w, h);
+		double offsetX = coordinateMap.getOriginX() - requestTR.getX();
+		double offsetY = coordinateMap.getOriginY() - requestTR.getY();
+		double scaleTR = 1.0 / requestTR.getDownsample();
+		double[] dbl = new double[3];
+		double[] dbl2 = new double[3];
+
+		// Classify blocks of the target tile before warping:
+		// blocks mapping outside the source are left empty (the new raster is already zero-filled),
+		// blocks mapping inside the source skip the per-pixel bounds check
+		byte[][] blockStates = classifyBlocks(coordinateMap, mapper, offsetX, offsetY, scaleTR,
+				xB1, widthTransform-xB2, yB1, heightTransform-yB2);
+		int nbx = coordinateMap.getNumBlocksX();
+
 		for (int y = 0; y < h; y++) { // Target
 			
-			//int offset = y * w;
+			int by = y / BLOCK_SIZE;
+			byte[] rowStates = blockStates[by];
 			
-			for (int x = 0; x < w; x++) { // Target
+			// Get the coordinates of the blocks that need to be computed
+			for (int bx = 0; bx < nbx; bx++) {
+				if (rowStates[bx] == BLOCK_OUTSIDE)
+					continue;
+				coordinateMap.getRow(bx, y, offsetX, offsetY, scaleTR, rowX, rowY, mapper);
+				if (useAreaAveraging) {
+					// Horizontal neighbours in skipped blocks, for the horizontal derivatives
+					int x0 = bx * BLOCK_SIZE;
+					int x1 = Math.min(x0 + BLOCK_SIZE, w);
+					if (bx > 0 && rowStates[bx-1] == BLOCK_OUTSIDE)
+						mapPixel(transform, request, x0 - 1, y, requestTR, dbl, dbl2, rowX, rowY);
+					if (bx < nbx - 1 && rowStates[bx+1] == BLOCK_OUTSIDE)
+						mapPixel(transform, request, x1, y, requestTR, dbl, dbl2, rowX, rowY);
+					// The previous row has not been mapped if this is the first row of the block and the block above was skipped
+					if (y % BLOCK_SIZE == 0 && (by == 0 || blockStates[by-1][bx] == BLOCK_OUTSIDE)) {
+						for (int x = x0; x < x1; x++)
+							mapPixel(transform, request, x, y-1, requestTR, dbl, dbl2, prevRowX, prevRowY);
+					}
+				}
+			}
+			
+			for (int bx = 0; bx < nbx; bx++) {
+				if (rowStates[bx] == BLOCK_OUTSIDE)
+					continue;
+				boolean isInside = rowStates[bx] == BLOCK_INSIDE;
+				int x1 = Math.min((bx + 1) * BLOCK_SIZE, w);
 				
-				dbl[0] = x * downsample + request.getX();
-				dbl[1] = y * downsample + request.getY();
-
-				if (downSampleTransformationField) {
-					// Faster -> cache and interpolate transformation field
-					getTransformedCoordinates(transform, dbl, dbl2);
-				} else {
-					// Full transformation computation
-					transform.apply(dbl, dbl2);
+				if (interpolationMode == InterpolationType.BILINEAR) {
+					// Batched over the pixels of the block, band by band
+					samples.bilinearRow(rowX, rowY, bx * BLOCK_SIZE, x1, rowValues);
+					continue;
 				}
 				
-				float dblX = (float) ( (dbl2[0]-requestTR.getX()) / downsampleTR );
-				float dblY = (float) ( (dbl2[1]-requestTR.getY()) / downsampleTR );
+				for (int x = bx * BLOCK_SIZE; x < x1; x++) { // Target
+					
+					float dblX = rowX[x];
+					float dblY = rowY[x];
+				
+					if (isInside || (dblX >= xB1 && dblY >= yB1 && dblX < (widthTransform-xB2) && dblY < (heightTransform-yB2))) {				
 				
-				if (dblX >= xB1 && dblY >= yB1 && dblX < (widthTransform-xB2) && dblY < (heightTransform-yB2)) {				
+						if ( useKernelInterpolation ) {
+							// Portion from Burger&Burge, Digital Image Processing, 2010
+							// https://en.wikipedia.org/wiki/Bicubic_interpolation
+							xx = (int)Math.floor(dblX);
+							yy = (int)Math.floor(dblY);		
 					
-					if (interpolationMode == InterpolationType.BILINEAR) {											
-						// Portion from Burger&Burge, Digital Image Processing, 2010
-						xx = (int) Math.floor(dblX);
-						yy = (int) Math.floor(dblY);
-						
-						index = yy * widthTransform + xx;
-
-						for (int b=0; b<nBands; b++) {
-
-							p1 = pixelsFloat[b][index];
-							p2 = pixelsFloat[b][index + 1];
-							p3 = pixelsFloat[b][index + widthTransform];
-							p4 = pixelsFloat[b][index + widthTransform + 1];
-							
-							ka = dblX - xx;
-							kb = dblY - yy;
-	
-							pA = p1 + ka*(p2 - p1);
-							pB = p3 + ka*(p4 - p3);
-							pOut = pA + kb*(pB - pA);
-							
-							if ( isNotFloatType ) {
-								raster.setSample(x, y, b, Math.round(pOut));
-							}
-							else {
-								raster.setSample(x, y, b, pOut);
-							}
+							kernel.getWeights(dblX - xx, wx);
+							kernel.getWeights(dblY - yy, wy);
+							index = (yy + kernel.getOffset()) * widthTransform + xx + kernel.getOffset();
+					
+							for (int b=0; b<nBands; b++)
+								rowValues[b][x] = samples.convolve(b, index, wx, kernel.getTaps(), wy, kernel.getTaps());
 						}
-					}
-					else if ( useCubicInterpolation ) {
-						// Portion from Burger&Burge, Digital Image Processing, 2010
-						// https://en.wikipedia.org/wiki/Bicubic_interpolation
-						xx = (int)Math.floor(dblX);
-						yy = (int)Math.floor(dblY);		
-						
-						for (int b=0; b<nBands; b++) {
-							pA = 0;
-							for (int ty=0; ty<=3; ty++) {
-								int v = yy - 1 + ty ; 
-								pB = 0;
-								index = v * widthTransform;
-								for (int tx=0; tx<=3; tx++) {
-									int u = xx - 1 + tx;
-									pB += pixelsFloat[b][index + u] * InterpolationHelper.cubic(dblX - u, cubicA, cubicB);
-								}
-								pA += pB * InterpolationHelper.cubic(dblY - v, cubicA, cubicB);
-							}
-							
-							if ( isNotFloatType ) {
-								raster.setSample(x, y, b, Math.round(pA));
-							}
-							else {
-								raster.setSample(x, y, b, pA);
+						else if ( useAreaAveraging ) {
+							// Footprint of the target pixel in the source, from the derivatives of the mapping
+							int xPrev = Math.max(x - 1, 0);
+							int xNext = Math.min(x + 1, w - 1);
+							float dxdx = 0, dydx = 0;
+							if (xNext > xPrev) {
+								dxdx = (rowX[xNext] - rowX[xPrev]) / (xNext - xPrev);
+								dydx = (rowY[xNext] - rowY[xPrev]) / (xNext - xPrev);
 							}
+							float dxdy = dblX - prevRowX[x];
+							float dydy = dblY - prevRowY[x];
+					
+							InterpolationHelper.getAreaWeights(dblX, Math.abs(dxdx) + Math.abs(dxdy), widthTransform, wx, rangeX);
+							InterpolationHelper.getAreaWeights(dblY, Math.abs(dydx) + Math.abs(dydy), heightTransform, wy, rangeY);
+							index = rangeY[0] * widthTransform + rangeX[0];
+					
+							for (int b=0; b<nBands; b++)
+								rowValues[b][x] = samples.convolve(b, index, wx, rangeX[1], wy, rangeY[1]);
 						}
-					}
-					else {  // Nearest neighbor Interpolation
-						xx = Math.round(dblX);
-						yy = Math.round(dblY);
+						else {  // Nearest neighbor Interpolation
+							xx = Math.round(dblX);
+							yy = Math.round(dblY);
 
-						elements = rasterTransform.getDataElements(xx, yy, elements); // Source
-						raster.setDataElements(x, y, elements); // Target
+							elements = rasterTransform.getDataElements(xx, yy, elements); // Source
+							raster.setDataElements(x, y, elements); // Target
+						}				
 					}				
-				}				
+				}
+			}
+			
+			if (samples != null) {
+				samples.writeRow(raster, y, rowValues);
+				for (int b=0; b<nBands; b++)
+					Arrays.fill(rowValues[b], 0);
+			}
+			
+			if (useAreaAveraging) {
+				float[] temp = prevRowX;
+				prevRowX = rowX;
+				rowX = temp;
+				temp = prevRowY;
+				prevRowY = rowY;
+				rowY = temp;
 			}
 		}
 
@@ -1,6 +1,15 @@
 package qupath.ext.imagecombinerwarpy.gui;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import net.imglib2.realtransform.RealTransform;
+import qupath.ext.imagecombinerwarpy.realtransform.RealTransformSerializer;
 import qupath.ext.warpy.WarpyExtension;
 
 /**
@@ -29,6 +38,8 @@ import qupath.ext.warpy.WarpyExtension;
  */
 public class RealTransformInterpolation {
 
+	private static final Logger logger = LoggerFactory.getLogger(RealTransformInterpolation.class);
+
 	public static final int[] interpolationsModes = InterpolationModes.getOrdinalNumbers();
 	public static final String[] interpolationsModeNames = InterpolationModes.getInterpolationTypeName();
 
@@ -47,6 +58,10 @@ public class RealTransformInterpolation {
 
 	// Imglib2 realtransform object.
 	final private RealTransform transform;
+
+	// Lazily computed hashes of the content of this object, not serialized
+	private transient String contentHash;
+	private transient String mappingHash;
 	
 	public RealTransformInterpolation(RealTransformInterpolation transformInterpolateSequence) {
 		version = WarpyExtension.getWarpyVersion();
@@ -59,6 +74,9 @@ public class RealTransformInterpolation {
 		this.transform = transformInterpolateSequence.getTransform();
 		this.interpolateTransformation = transformInterpolateSequence.downsampleTransformation();
 		this.transformationDownsampling = transformInterpolateSequence.getTransformationDownsampling();
+		if (this.interpolation == transformInterpolateSequence.getInterpolation())
+			this.contentHash = transformInterpolateSequence.contentHash;
+		this.mappingHash = transformInterpolateSequence.mappingHash;
 	}
 
 	public RealTransformInterpolation(RealTransform transform, int interpolation, boolean interpolateTransformation, int transformationDownsampling) {
@@ -97,6 +115,50 @@ public class RealTransformInterpolation {
 		return interpolationsModeNames[interpolation];
 	}
 
+	/**
+	 * Get a stable hash of the content of this object: the serialized transform, the interpolation and
+	 * the transformation field settings. Two objects with the same content give the same hash, also
+	 * across QuPath sessions, which makes it suitable to identify the warped image in tile caches.
+	 * @return a hexadecimal string
+	 */
+	public String getContentHash() {
+		if (contentHash == null)
+			contentHash = hash(getTransformJson() + "|" + interpolation + "|" + interpolateTransformation + "|" + transformationDownsampling);
+		return contentHash;
+	}
+
+	/**
+	 * Get a stable hash of the coordinate mapping defined by this object: the serialized transform and
+	 * the transformation field settings, but not the interpolation.
+	 * Objects with the same mapping hash map the pixels of any region to the same source coordinates.
+	 * @return a hexadecimal string
+	 */
+	public String getMappingHash() {
+		if (mappingHash == null)
+			mappingHash = hash(getTransformJson() + "|" + interpolateTransformation + "|" + transformationDownsampling);
+		return mappingHash;
+	}
+
+	private String getTransformJson() {
+		try {
+			return RealTransformSerializer.getRealTransformAdapter().toJson(transform, RealTransform.class);
+		} catch (Exception e) {
+			// Without a serialized form, fall back to the identity of the transform - never shared, but safe
+			logger.debug("Unable to serialize transform {} for hashing", transform, e);
+			return transform.getClass().getName() + "@" + System.identityHashCode(transform);
+		}
+	}
+
+	private static String hash(String content) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(content.getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(hash, 0, 16);
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(content.hashCode());
+		}
+	}
+
 	private static boolean isValidInterpolation(int interpolation) {
         for (int interpolationsMode : interpolationsModes) {
             if (interpolationsMode == interpolation)
@@ -0,0 +1,120 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.gui.commands.ProjectCommands;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Loads the thumbnails shown in the image list in the background.
+ * <p>
+ * Thumbnails are rendered to RGB, as in the project browser, and kept in memory (for the most recently used
+ * {@link #MAX_CACHED} images). For project entries, the thumbnail of the entry is used, and set if it is missing,
+ * so that it is not computed from the image again when the list is opened later.
+ * Requests for a thumbnail that is already being loaded share the same load.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class ThumbnailLoader {
+
+	private static final Logger logger = LoggerFactory.getLogger(ThumbnailLoader.class);
+
+	/**
+	 * Maximum number of thumbnails kept in memory.
+	 */
+	static final int MAX_CACHED = 256;
+
+	private static final ExecutorService pool = Executors.newFixedThreadPool(2, ThreadTools.createThreadFactory("imagecombinerwarpy-thumbnails", true));
+
+	private static final Map<String, Image> cache = new LinkedHashMap<>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	private static final Map<String, CompletableFuture<Image>> inFlight = new ConcurrentHashMap<>();
+
+	private ThumbnailLoader() {
+		// Static methods only
+	}
+
+	/**
+	 * Get a thumbnail if it is in memory.
+	 * @param server the server
+	 * @return the thumbnail, or null if it has not been loaded yet
+	 */
+	static Image getCached(ImageServer<BufferedImage> server) {
+		synchronized (cache) {
+			return cache.get(server.getPath());
+		}
+	}
+
+	/**
+	 * Load a thumbnail in the background.
+	 * @param server the server
+	 * @param entry the project entry of the image, whose thumbnail is used or set (may be null)
+	 * @param onLoaded called on the JavaFX application thread with the thumbnail, unless it cannot be loaded
+	 */
+	static void load(ImageServer<BufferedImage> server, ProjectImageEntry<BufferedImage> entry, Consumer<Image> onLoaded) {
+		String key = server.getPath();
+		var future = inFlight.computeIfAbsent(key, k -> CompletableFuture.supplyAsync(() -> read(server, entry), pool));
+		future.whenComplete((image, e) -> {
+			inFlight.remove(key, future);
+			if (e != null) {
+				logger.warn("Unable to load thumbnail for {}", server.getPath(), e);
+				return;
+			}
+			synchronized (cache) {
+				cache.put(key, image);
+			}
+			Platform.runLater(() -> onLoaded.accept(image));
+		});
+	}
+
+	private static Image read(ImageServer<BufferedImage> server, ProjectImageEntry<BufferedImage> entry) {
+		BufferedImage img = null;
+		if (entry != null) {
+			try {
+				img = entry.getThumbnail();
+			} catch (IOException e) {
+				logger.debug("Unable to read the thumbnail of {}", entry.getImageName(), e);
+			}
+		}
+		if (img == null) {
+			try {
+				img = ProjectCommands.getThumbnailRGB(server);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+			if (entry != null) {
+				try {
+					entry.setThumbnail(img);
+				} catch (IOException e) {
+					logger.debug("Unable to write the thumbnail of {}", entry.getImageName(), e);
+				}
+			}
+		}
+		return SwingFXUtils.toFXImage(img, null);
+	}
+
+}
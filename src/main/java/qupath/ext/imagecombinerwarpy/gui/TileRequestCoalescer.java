@@ -0,0 +1,81 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Coalesces concurrent identical tile requests in the warping image servers: requests for the same tile
+ * that are in flight at the same time share a single computation (see {@link #load(RegionRequest, TileLoader)}).
+ * This matters when several viewers, or a parallel export, request the same tiles of a warped image.
+ * <p>
+ * Reads of the source (wrapped) server are not coalesced here: the padded source regions of neighbouring tiles
+ * overlap without being identical, and the tiles of the source server they are made of are already cached by QuPath.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+class TileRequestCoalescer {
+
+	/**
+	 * Function computing a tile.
+	 */
+	@FunctionalInterface
+	interface TileLoader {
+		BufferedImage load() throws IOException;
+	}
+
+	private final Map<RegionRequest, CompletableFuture<BufferedImage>> inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * Compute a tile, or wait for the result of an identical request already in flight.
+	 * @param request the tile request, with the path set to the ID of the warping server
+	 * @param loader function computing the tile if no identical request is in flight
+	 * @return the tile
+	 * @throws IOException if the tile could not be computed
+	 */
+	BufferedImage load(RegionRequest request, TileLoader loader) throws IOException {
+		var future = new CompletableFuture<BufferedImage>();
+		var existing = inFlight.putIfAbsent(request, future);
+		if (existing != null) {
+			WarpMetrics.getInstance().requestCoalesced();
+			return await(existing);
+		}
+		try {
+			var img = loader.load();
+			future.complete(img);
+			return img;
+		} catch (IOException | RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(request, future);
+		}
+	}
+
+	private static BufferedImage await(CompletableFuture<BufferedImage> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			var e2 = new InterruptedIOException("Interrupted while waiting for a warped tile");
+			e2.initCause(e);
+			throw e2;
+		} catch (ExecutionException e) {
+			var cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the warping image servers when a tile cannot be computed for the type of the source image
+ * with the requested interpolation.
+ * <p>
+ * The servers never show dialogs; callers (viewers, scripts or batch jobs) decide how to report the failure.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+public class UnsupportedImageTypeException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 * @param message
+	 */
+	public UnsupportedImageTypeException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,146 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by the warping image servers ({@link RealTransformImageServer} and {@link AffineTransformInterpolationImageServer}).
+ * <p>
+ * The counters are cheap to update from the tile-loading threads and can be read at any time,
+ * e.g. to log the behaviour of a headless batch job, or to check how often tiles fail because of their image type.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+public class WarpMetrics {
+
+	private static final WarpMetrics instance = new WarpMetrics();
+
+	private final LongAdder tileRequests = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder coalescedRequests = new LongAdder();
+	private final LongAdder tilesWarped = new LongAdder();
+	private final LongAdder warpNanos = new LongAdder();
+	private final LongAdder unsupportedTiles = new LongAdder();
+	private final LongAdder failedTiles = new LongAdder();
+
+	/**
+	 * Get the metrics shared by all warping servers.
+	 * @return
+	 */
+	public static WarpMetrics getInstance() {
+		return instance;
+	}
+
+	void tileRequested() {
+		tileRequests.increment();
+	}
+
+	void cacheHit() {
+		cacheHits.increment();
+	}
+
+	void requestCoalesced() {
+		coalescedRequests.increment();
+	}
+
+	/**
+	 * Warp a tile, counting the time spent or the failure.
+	 * @param loader function warping the tile
+	 * @return the warped tile
+	 * @throws IOException if the tile could not be warped
+	 */
+	BufferedImage warp(TileRequestCoalescer.TileLoader loader) throws IOException {
+		long start = System.nanoTime();
+		try {
+			var img = loader.load();
+			tilesWarped.increment();
+			warpNanos.add(System.nanoTime() - start);
+			return img;
+		} catch (UnsupportedImageTypeException e) {
+			unsupportedTiles.increment();
+			throw e;
+		} catch (IOException | RuntimeException e) {
+			failedTiles.increment();
+			throw e;
+		}
+	}
+
+	/**
+	 * Number of tiles requested from the warping servers.
+	 * @return
+	 */
+	public long getTileRequests() {
+		return tileRequests.sum();
+	}
+
+	/**
+	 * Number of requests served from the {@link WarpedTileCache}.
+	 * @return
+	 */
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * Number of requests that waited for an identical request in flight rather than warping the tile again.
+	 * @return
+	 */
+	public long getCoalescedRequests() {
+		return coalescedRequests.sum();
+	}
+
+	/**
+	 * Number of tiles actually warped.
+	 * @return
+	 */
+	public long getTilesWarped() {
+		return tilesWarped.sum();
+	}
+
+	/**
+	 * Total time spent warping tiles (including source reads), in milliseconds.
+	 * @return
+	 */
+	public long getWarpMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(warpNanos.sum());
+	}
+
+	/**
+	 * Number of tiles that could not be warped because of the type of the source image.
+	 * @return
+	 */
+	public long getUnsupportedTiles() {
+		return unsupportedTiles.sum();
+	}
+
+	/**
+	 * Number of tiles that could not be warped for any other reason.
+	 * @return
+	 */
+	public long getFailedTiles() {
+		return failedTiles.sum();
+	}
+
+	/**
+	 * Reset all the counters.
+	 */
+	public void reset() {
+		tileRequests.reset();
+		cacheHits.reset();
+		coalescedRequests.reset();
+		tilesWarped.reset();
+		warpNanos.reset();
+		unsupportedTiles.reset();
+		failedTiles.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("WarpMetrics (%d requests, %d cache hits, %d coalesced, %d warped in %d ms, %d unsupported, %d failed)",
+				getTileRequests(), getCacheHits(), getCoalescedRequests(),
+				getTilesWarped(), getWarpMillis(), getUnsupportedTiles(), getFailedTiles());
+	}
+
+}
@@ -0,0 +1,164 @@
+package qupath.ext.imagecombinerwarpy.gui;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Size-bounded cache for tiles computed by the warping image servers
+ * ({@link RealTransformImageServer} and {@link AffineTransformInterpolationImageServer}).
+ * <p>
+ * Tiles are keyed by their {@link RegionRequest}, whose path is the ID of the warping server.
+ * Since the server IDs depend on the content of the transform (and on the interpolation settings),
+ * two differently warped servers over the same image never share entries, while a server that is
+ * recreated with the same transform (e.g. in another viewer, or after reopening the image) reuses them.
+ * <p>
+ * The cache accounts for the size in bytes of the cached rasters and evicts the least recently used
+ * tiles once {@link #getMaxBytes()} is exceeded.
+ * <p>
+ * A separate instance, shared by all the {@link ImageCombinerWarpyServerOverlay}s, caches tiles converted to RGB.
+ * <p>
+ * This file is part of ImageCombinerWarpy a QuPath extension based on the QuPath 'Interactive Image Alignment' tool
+ */
+public class WarpedTileCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(WarpedTileCache.class);
+
+	// Default to 1/16 of the available heap, but no more than 1 GB
+	private static final long DEFAULT_MAX_BYTES = Math.min(Runtime.getRuntime().maxMemory() / 16, 1024L * 1024L * 1024L);
+
+	private static final WarpedTileCache instance = new WarpedTileCache(DEFAULT_MAX_BYTES);
+
+	private final Map<RegionRequest, BufferedImage> map = new LinkedHashMap<>(256, 0.75f, true);
+
+	private long maxBytes;
+	private long currentBytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Constructor.
+	 * @param maxBytes maximum size of the cached tiles, in bytes
+	 */
+	public WarpedTileCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Get the cache shared by all warping servers.
+	 * @return
+	 */
+	public static WarpedTileCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Get a cached tile.
+	 * @param request the request, with the path set to the ID of the warping server
+	 * @return the cached tile, or null if the tile is not in the cache
+	 */
+	public synchronized BufferedImage get(RegionRequest request) {
+		var img = map.get(request);
+		if (img == null)
+			misses++;
+		else
+			hits++;
+		return img;
+	}
+
+	/**
+	 * Add a tile to the cache, evicting the least recently used tiles if needed.
+	 * Tiles that are larger than the maximum size of the cache are ignored.
+	 * @param request the request, with the path set to the ID of the warping server
+	 * @param img the warped tile
+	 */
+	public synchronized void put(RegionRequest request, BufferedImage img) {
+		if (img == null)
+			return;
+		long bytes = getSizeBytes(img);
+		if (bytes > maxBytes)
+			return;
+		var previous = map.put(request, img);
+		if (previous != null)
+			currentBytes -= getSizeBytes(previous);
+		currentBytes += bytes;
+		trimToSize(maxBytes);
+	}
+
+	/**
+	 * Remove all the tiles from the cache.
+	 */
+	public synchronized void clear() {
+		map.clear();
+		currentBytes = 0;
+	}
+
+	/**
+	 * Get the current size of the cached tiles, in bytes.
+	 * @return
+	 */
+	public synchronized long getSizeBytes() {
+		return currentBytes;
+	}
+
+	/**
+	 * Get the maximum size of the cached tiles, in bytes.
+	 * @return
+	 */
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Set the maximum size of the cached tiles, in bytes.
+	 * Tiles are evicted immediately if the cache is larger than the new size.
+	 * @param maxBytes
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trimToSize(maxBytes);
+	}
+
+	/**
+	 * Get the number of cached tiles.
+	 * @return
+	 */
+	public synchronized int size() {
+		return map.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("WarpedTileCache (%d tiles, %.1f / %.1f MB, %d hits, %d misses)",
+				map.size(), currentBytes / (1024.0 * 1024.0), maxBytes / (1024.0 * 1024.0), hits, misses);
+	}
+
+	private void trimToSize(long bytes) {
+		Iterator<BufferedImage> iter = map.values().iterator();
+		while (currentBytes > bytes && iter.hasNext()) {
+			currentBytes -= getSizeBytes(iter.next());
+			iter.remove();
+		}
+		logger.trace("{}", this);
+	}
+
+	/**
+	 * Estimate the memory used by the pixels of an image.
+	 * @param img
+	 * @return the size of the image data buffer, in bytes
+	 */
+	static long getSizeBytes(BufferedImage img) {
+		DataBuffer buffer = img.getRaster().getDataBuffer();
+		long bytesPerElement = Math.max(1, DataBuffer.getDataTypeSize(buffer.getDataType()) / 8);
+		return (long) buffer.getSize() * buffer.getNumBanks() * bytesPerElement;
+	}
+
+}